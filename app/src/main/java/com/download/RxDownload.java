@@ -15,9 +15,16 @@ import com.download.entity.DownloadFlag;
 import com.download.entity.DownloadRecord;
 import com.download.entity.DownloadStatus;
 import com.download.entity.MultiMission;
+import com.download.entity.RecordQuery;
 import com.download.entity.SingleMission;
+import com.download.entity.SinkType;
+import com.download.function.BandwidthLimiter;
 import com.download.function.DownloadHelper;
+import com.download.function.DownloadMetrics;
 import com.download.function.DownloadService;
+import com.download.function.EventHub;
+import com.download.function.FairShare;
+import com.download.function.HostLimits;
 import com.download.function.Utils;
 
 import java.io.File;
@@ -25,9 +32,15 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableSource;
@@ -59,7 +72,10 @@ public class RxDownload {
         });
     }
 
+    private static final long FRAME_MILLIS = 16;
+
     private int maxDownloadNumber = 5;
+    private int maxMissionSlots = 0;
     private Context context;
     private Semaphore semaphore;
     private DownloadService downloadService;
@@ -135,6 +151,7 @@ public class RxDownload {
 
     /**
      * set max thread to download file.
+     * With adaptive threads this is the upper bound of range connections per download.
      *
      * @param max max threads
      * @return instance
@@ -144,6 +161,167 @@ public class RxDownload {
         return this;
     }
 
+    /**
+     * set whether range downloads start with a few connections and add more while the
+     * measured throughput keeps improving. Default is true.
+     * The current count is reported by {@link DownloadStatus#getConnections()}, each decision
+     * to add or drop one by {@link DownloadStatus#getTargetConnections()}.
+     *
+     * @param adaptive adaptive
+     * @return instance
+     */
+    public RxDownload adaptiveThread(boolean adaptive) {
+        this.downloadHelper.setAdaptiveThreads(adaptive);
+        return this;
+    }
+
+    /**
+     * set whether to probe the url with one ranged GET instead of separate HEAD requests for
+     * file info, range support and file change. The probe's body is kept as the first bytes
+     * of the download, which saves a few round trips before the first byte. Default is false.
+     *
+     * @param fastProbe fast probe
+     * @return instance
+     */
+    public RxDownload fastProbe(boolean fastProbe) {
+        this.downloadHelper.setFastProbe(fastProbe);
+        return this;
+    }
+
+    /**
+     * set how long the probed metadata of a url (length, validators, range support, name) is
+     * reused, so that downloading it again within ttlMillis sends no probe request.
+     * A download response with different validators drops the entry.
+     * Default is 5 minutes and 500 urls.
+     *
+     * @param ttlMillis  time to live, 0 turns the cache off
+     * @param maxEntries least recently used urls beyond this are evicted
+     * @return instance
+     */
+    public RxDownload metadataCache(long ttlMillis, int maxEntries) {
+        this.downloadHelper.setMetadataCachePolicy(ttlMillis, maxEntries);
+        return this;
+    }
+
+    /**
+     * set per host limits, so one host can not take every download slot.
+     * <p>
+     * A mission whose host is at either limit waits while missions of other hosts start.
+     * Each download may open its first range connection over the connection limit, further ones wait for room.
+     * Default is no limit.
+     *
+     * @param maxMissionsPerHost    running missions per host, 0 for no limit
+     * @param maxConnectionsPerHost range connections per host over all its missions, 0 for no limit
+     * @param byAddress             count per resolved IP address instead of per host name
+     * @return instance
+     */
+    public RxDownload hostLimits(int maxMissionsPerHost, int maxConnectionsPerHost, boolean byAddress) {
+        HostLimits.setLimits(maxMissionsPerHost, maxConnectionsPerHost, byAddress);
+        return this;
+    }
+
+    /**
+     * Live count of running missions and open range connections of every busy host.
+     *
+     * @return host to counters
+     */
+    public Map<String, HostLimits.Stats> getHostStats() {
+        return HostLimits.stats();
+    }
+
+    /**
+     * Timings and counters of the engine: network phases, probes, range sizes, retries, disk and
+     * database writes and queue waits, as histograms in aggregate and summaries per url.
+     *
+     * @return snapshot
+     */
+    public DownloadMetrics.Snapshot getMetrics() {
+        return DownloadMetrics.snapshot();
+    }
+
+    /**
+     * Clear the metrics, so the next snapshot covers only what happens from now on.
+     */
+    public void resetMetrics() {
+        DownloadMetrics.reset();
+    }
+
+    /**
+     * set the max speed of all downloads together. Takes effect on running downloads too.
+     * Default is no limit.
+     *
+     * @param bytesPerSecond bytes per second, 0 for no limit
+     * @return instance
+     */
+    public RxDownload maxBandwidth(long bytesPerSecond) {
+        BandwidthLimiter.setGlobal(bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set the max speed of all downloads of a service mission together.
+     *
+     * @param missionId      mission id
+     * @param bytesPerSecond bytes per second, 0 for no limit
+     * @return instance
+     */
+    public RxDownload maxMissionBandwidth(String missionId, long bytesPerSecond) {
+        BandwidthLimiter.setMission(missionId, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set the max speed of one url's download, over all its range connections.
+     *
+     * @param url            url
+     * @param bytesPerSecond bytes per second, 0 for no limit
+     * @return instance
+     */
+    public RxDownload maxUrlBandwidth(String url, long bytesPerSecond) {
+        BandwidthLimiter.setUrl(url, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set whether running downloads share the measured link speed by weight, see {@link DownloadBean#getWeight()},
+     * instead of whoever has more connections or a closer server taking most of it.
+     * Shares follow downloads as they start and finish. Default is false.
+     *
+     * @param enabled enabled
+     * @return instance
+     */
+    public RxDownload fairShare(boolean enabled) {
+        FairShare.setEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * set how ranges are written to disk, see {@link SinkType}.
+     * Default is {@link SinkType#CHANNEL}. {@link SinkType#AUTO} picks the sink that hands bytes over
+     * fastest, which favours MAPPED and PIPELINED, whose disk writes happen after the measure.
+     *
+     * @param sinkType sink type
+     * @return instance
+     */
+    public RxDownload sinkType(int sinkType) {
+        this.downloadHelper.setSinkType(sinkType);
+        return this;
+    }
+
+    /**
+     * set how often download progress is written to the database.
+     * Progress is kept in memory and written in one batch every intervalMillis, as soon as a
+     * download has moved byteDelta bytes, and whenever a download pauses, fails or completes.
+     *
+     * @param intervalMillis flush interval, default 1000ms, must be positive
+     * @param byteDelta      byte delta, default 2MB
+     * @return instance
+     */
+    public RxDownload progressFlushPolicy(long intervalMillis, long byteDelta) {
+        this.downloadHelper.setProgressFlushPolicy(intervalMillis, byteDelta);
+        return this;
+    }
+
     /**
      * set max retry count when download failed
      *
@@ -166,13 +344,26 @@ public class RxDownload {
         return this;
     }
 
+    /**
+     * set how many of the max download number one multi mission may hold at once, so its files
+     * leave room for other missions. Default is 0, no cap.
+     *
+     * @param max max downloads of one mission
+     * @return instance
+     */
+    public RxDownload maxMissionSlots(int max) {
+        this.maxMissionSlots = max;
+        return this;
+    }
+
     /**
      * Receive the url download event.
      * <p>
      * Will receive the following event:
      * {@link DownloadFlag#NORMAL}、{@link DownloadFlag#WAITING}、
      * {@link DownloadFlag#STARTED}、{@link DownloadFlag#PAUSED}、
-     * {@link DownloadFlag#COMPLETED}、{@link DownloadFlag#FAILED};
+     * {@link DownloadFlag#COMPLETED}、{@link DownloadFlag#FAILED}、
+     * {@link DownloadFlag#VERIFY_FAILED};
      * <p>
      * Every event has {@link DownloadStatus}, you can get it and display it on the interface.
      *
@@ -185,6 +376,59 @@ public class RxDownload {
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
+    /**
+     * Receive the download events of many urls with one subscription, for a list.
+     * <p>
+     * Events come in batches once per frame, holding only the urls that changed, each with its latest event,
+     * see {@link DownloadEvent#getUrl()}. The first batch holds the current state of every url.
+     *
+     * @param urls urls or missionIds
+     * @return batches of DownloadEvent
+     */
+    public Flowable<List<DownloadEvent>> receiveDownloadEvents(Collection<String> urls) {
+        return this.receiveDownloadEvents(urls, FRAME_MILLIS);
+    }
+
+    /**
+     * Receive the download events of many urls with one subscription, batched over windowMillis.
+     * A main thread that falls behind skips windows, it never gets more than one batch queued.
+     *
+     * @param urls         urls or missionIds
+     * @param windowMillis batch window
+     * @return batches of DownloadEvent
+     */
+    public Flowable<List<DownloadEvent>> receiveDownloadEvents(Collection<String> urls, long windowMillis) {
+        return this.receiveBatches(new HashSet<>(urls), windowMillis);
+    }
+
+    /**
+     * Receive the download events of every download of the service, batched once per frame,
+     * see {@link #receiveDownloadEvents(Collection)}.
+     *
+     * @return batches of DownloadEvent
+     */
+    public Flowable<List<DownloadEvent>> receiveDownloadEvents() {
+        return this.receiveDownloadEvents(FRAME_MILLIS);
+    }
+
+    /**
+     * Receive the download events of every download of the service, batched over windowMillis.
+     *
+     * @param windowMillis batch window
+     * @return batches of DownloadEvent
+     */
+    public Flowable<List<DownloadEvent>> receiveDownloadEvents(long windowMillis) {
+        return this.receiveBatches(null, windowMillis);
+    }
+
+    private Flowable<List<DownloadEvent>> receiveBatches(final Set<String> keys, final long windowMillis) {
+        return this.createGeneralObservable(null)
+                .toFlowable(BackpressureStrategy.LATEST)
+                .switchMap(o -> this.downloadService.receiveDownloadEvents(keys, windowMillis)
+                        .subscribeOn(Schedulers.io()), 1)
+                .observeOn(AndroidSchedulers.mainThread(), false, 1);
+    }
+
     /**
      * Read all the download record from the database.
      *
@@ -194,6 +438,19 @@ public class RxDownload {
         return this.downloadHelper.readAllRecords();
     }
 
+    /**
+     * Read the download records page by page, see {@link RecordQuery}.
+     * <p>
+     * Prefer this to {@link #getTotalDownloadRecords()} for long histories: only the requested pages
+     * are read, and the extras are skipped unless asked for.
+     *
+     * @param query filter, page size and projection
+     * @return Flowable<List < DownloadRecord>>, one list per page
+     */
+    public Flowable<List<DownloadRecord>> getDownloadRecords(RecordQuery query) {
+        return this.downloadHelper.readRecords(query);
+    }
+
     /**
      * Read single download record with url.
      * If record contain, return correct record, else return empty record.
@@ -216,6 +473,31 @@ public class RxDownload {
         return this.createGeneralObservable(() -> this.downloadService.pauseDownload(url)).observeOn(AndroidSchedulers.mainThread());
     }
 
+    /**
+     * Change the download priority of a url or missionId, while it waits or runs.
+     * <p>
+     * See {@link com.download.entity.DownloadPriority}. Raising a waiting url to URGENT pauses a lower
+     * priority download if every slot is taken, that download continues once a slot is free again.
+     *
+     * @param url      url or missionId
+     * @param priority priority
+     * @return Observable<?>
+     */
+    public Observable<?> setPriority(final String url, final int priority) {
+        return this.createGeneralObservable(() -> this.downloadService.setPriority(url, priority)).observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * Live event channels of the service: open ones, idle ones waiting to be dropped, and their subscribers.
+     *
+     * @return Observable<EventHub.Stats>
+     */
+    public Observable<EventHub.Stats> getEventHubStats() {
+        return this.createGeneralObservable(null)
+                .map(o -> this.downloadService.getEventHubStats())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
     /**
      * Delete download.
      * <p>
@@ -592,6 +874,7 @@ public class RxDownload {
     private void startBindServiceAndDo(final ServiceConnectedCallback callback) {
         Intent intent = new Intent(context, DownloadService.class);
         intent.putExtra(DownloadService.INTENT_KEY, maxDownloadNumber);
+        intent.putExtra(DownloadService.INTENT_KEY_MISSION_SLOTS, maxMissionSlots);
         this.context.startService(intent);
         this.context.bindService(intent, new ServiceConnection() {
             @Override
@@ -10,35 +10,37 @@ import com.download.entity.DownloadBean;
 import com.download.entity.DownloadFlag;
 import com.download.entity.DownloadRecord;
 import com.download.entity.DownloadStatus;
+import com.download.entity.RecordQuery;
+import com.download.entity.UrlMetadata;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.functions.BiFunction;
 import io.reactivex.schedulers.Schedulers;
 
+import static com.download.db.Db.RecordTable.COLUMNS;
 import static com.download.db.Db.RecordTable.COLUMN_DATE;
 import static com.download.db.Db.RecordTable.COLUMN_DOWNLOAD_FLAG;
-import static com.download.db.Db.RecordTable.COLUMN_DOWNLOAD_SIZE;
-import static com.download.db.Db.RecordTable.COLUMN_EXTRA1;
-import static com.download.db.Db.RecordTable.COLUMN_EXTRA2;
-import static com.download.db.Db.RecordTable.COLUMN_EXTRA3;
-import static com.download.db.Db.RecordTable.COLUMN_EXTRA4;
-import static com.download.db.Db.RecordTable.COLUMN_EXTRA5;
 import static com.download.db.Db.RecordTable.COLUMN_ID;
-import static com.download.db.Db.RecordTable.COLUMN_IS_CHUNKED;
 import static com.download.db.Db.RecordTable.COLUMN_MISSION_ID;
-import static com.download.db.Db.RecordTable.COLUMN_SAVE_NAME;
-import static com.download.db.Db.RecordTable.COLUMN_SAVE_PATH;
-import static com.download.db.Db.RecordTable.COLUMN_TOTAL_SIZE;
 import static com.download.db.Db.RecordTable.COLUMN_URL;
+import static com.download.db.Db.RecordTable.SUMMARY_COLUMNS;
 import static com.download.db.Db.RecordTable.TABLE_NAME;
-import static com.download.db.Db.RecordTable.insert;
+import static com.download.db.Db.RecordTable.UPSERT;
 import static com.download.db.Db.RecordTable.read;
 import static com.download.db.Db.RecordTable.update;
+import static com.download.db.Db.RecordTable.upsert;
 import static com.download.entity.DownloadFlag.PAUSED;
+import static com.download.function.Utils.empty;
 
 public class DataBaseHelper {
 
@@ -47,9 +49,17 @@ public class DataBaseHelper {
     private volatile SQLiteDatabase readableDatabase;
     private volatile SQLiteDatabase writableDatabase;
     private DbOpenHelper mDbOpenHelper;
+    private ProgressCoalescer progressCoalescer;
+    private DbWriter dbWriter;
+    private RecordCache recordCache;
+    private volatile long metadataTtlMillis = 5 * 60 * 1000;
+    private volatile int maxMetadata = 500;
 
     private DataBaseHelper(Context context) {
         this.mDbOpenHelper = new DbOpenHelper(context);
+        this.progressCoalescer = new ProgressCoalescer(this);
+        this.dbWriter = new DbWriter(this);
+        this.recordCache = new RecordCache(RecordCache.MAX_ENTRIES);
     }
 
     public static DataBaseHelper getSingleton(Context context) {
@@ -64,56 +74,127 @@ public class DataBaseHelper {
     }
 
     /**
-     * Judge the url's record exists.
+     * Insert the url's record, or restart the existing one with the bean's name and path.
+     * Returns once committed, like the other lifecycle writes, so the next read sees the row.
      *
-     * @param url url
-     * @return true if not exists
+     * @param downloadBean bean
+     * @param flag         flag
+     * @return future, done
      */
-    public boolean recordNotExists(String url) {
-        Cursor cursor = null;
-        try {
-            cursor = getReadableDatabase().query(TABLE_NAME, new String[]{COLUMN_ID},
-                    COLUMN_URL + "=?", new String[]{url}, null, null, null);
-            cursor.moveToFirst();
-            return cursor.getCount() == 0;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+    public Future<Void> upsertRecord(DownloadBean downloadBean, int flag) {
+        this.recordCache.upsert(this.upserted(downloadBean, flag, null, false));
+        return this.commit(this.write(downloadBean.getUrl(), db -> {
+            db.execSQL(UPSERT, upsert(downloadBean, flag, null, false));
+            return null;
+        }));
     }
 
-    public long insertRecord(DownloadBean downloadBean, int flag) {
-        return this.getWritableDatabase().insert(TABLE_NAME, null, insert(downloadBean, flag, null));
+    /**
+     * Insert the url's record, or requeue the existing one under the mission, keeping its name and path.
+     *
+     * @param downloadBean bean
+     * @param flag         flag
+     * @param missionId    mission id
+     * @return future, done
+     */
+    public Future<Void> upsertRecord(DownloadBean downloadBean, int flag, String missionId) {
+        this.recordCache.upsert(this.upserted(downloadBean, flag, missionId, true));
+        return this.commit(this.write(downloadBean.getUrl(), db -> {
+            db.execSQL(UPSERT, upsert(downloadBean, flag, missionId, true));
+            return null;
+        }));
+    }
+
+    public Future<Integer> updateStatus(String url, DownloadStatus status) {
+        this.recordCache.updateStatus(url, status);
+        return this.write(url, db -> db.update(TABLE_NAME, update(status), COLUMN_URL + "=?", new String[]{url}));
+    }
+
+    /**
+     * Update several urls' status in one transaction.
+     *
+     * @param statuses url to status
+     * @return future, done when written
+     */
+    public Future<Void> updateStatus(Map<String, DownloadStatus> statuses) {
+        for (Map.Entry<String, DownloadStatus> each : statuses.entrySet()) {
+            this.recordCache.updateStatus(each.getKey(), each.getValue());
+        }
+        return this.dbWriter.submit(db -> {
+            for (Map.Entry<String, DownloadStatus> each : statuses.entrySet()) {
+                db.update(TABLE_NAME, update(each.getValue()), COLUMN_URL + "=?", new String[]{each.getKey()});
+            }
+            return null;
+        }, failed -> {
+            for (String each : statuses.keySet()) {
+                this.recordCache.end(each, failed);
+            }
+        });
     }
 
-    public long insertRecord(DownloadBean downloadBean, int flag, String missionId) {
-        return this.getWritableDatabase().insert(TABLE_NAME, null, insert(downloadBean, flag, missionId));
+    /**
+     * Record the url's status in memory, it is written later in a batch.
+     *
+     * @param url    url
+     * @param status status
+     */
+    public void postStatus(String url, DownloadStatus status) {
+        this.progressCoalescer.post(url, status);
     }
 
-    public long updateStatus(String url, DownloadStatus status) {
-        return this.getWritableDatabase().update(TABLE_NAME, update(status), COLUMN_URL + "=?", new String[]{url});
+    /**
+     * Write the url's pending status now.
+     *
+     * @param url url
+     */
+    public void flushStatus(String url) {
+        this.progressCoalescer.flush(url);
     }
 
-    public long updateRecord(String url, int flag) {
-        return this.getWritableDatabase().update(TABLE_NAME, update(flag), COLUMN_URL + "=?", new String[]{url});
+    /**
+     * Write every pending status now.
+     */
+    public void flushAllStatus() {
+        this.progressCoalescer.flushAll();
     }
 
-    public long updateRecord(String url, int flag, String missionId) {
-        return this.getWritableDatabase().update(TABLE_NAME, update(flag, missionId), COLUMN_URL + "=?", new String[]{url});
+    /**
+     * Set when pending statuses are written.
+     *
+     * @param intervalMillis flush interval
+     * @param byteDelta      flush a url once it has moved this many bytes
+     */
+    public void setProgressFlushPolicy(long intervalMillis, long byteDelta) {
+        this.progressCoalescer.setPolicy(intervalMillis, byteDelta);
     }
 
-    public long updateRecord(String url, String saveName, String savePath, int flag) {
-        return this.getWritableDatabase().update(TABLE_NAME, update(saveName, savePath, flag), COLUMN_URL + "=?", new String[]{url});
+    /**
+     * Set the url's flag, returns once committed.
+     *
+     * @param url  url
+     * @param flag flag
+     * @return future, done
+     */
+    public Future<Integer> updateRecord(String url, int flag) {
+        this.recordCache.updateFlag(url, flag);
+        return this.commit(this.write(url, db -> db.update(TABLE_NAME, update(flag), COLUMN_URL + "=?", new String[]{url})));
     }
 
-    public int deleteRecord(String url) {
-        return this.getWritableDatabase().delete(TABLE_NAME, COLUMN_URL + "=?", new String[]{url});
+    /**
+     * Delete the url's record, returns once committed.
+     *
+     * @param url url
+     * @return future, done
+     */
+    public Future<Integer> deleteRecord(String url) {
+        this.recordCache.delete(url);
+        return this.commit(this.write(url, db -> db.delete(TABLE_NAME, COLUMN_URL + "=?", new String[]{url})));
     }
 
-    public long repairErrorFlag() {
-        return this.getWritableDatabase().update(TABLE_NAME, update(PAUSED), COLUMN_DOWNLOAD_FLAG + "=? or " + COLUMN_DOWNLOAD_FLAG + "=?",
-                new String[]{DownloadFlag.WAITING + "", DownloadFlag.STARTED + ""});
+    public Future<Integer> repairErrorFlag() {
+        this.recordCache.repairErrorFlag();
+        return this.dbWriter.submit(db -> db.update(TABLE_NAME, update(PAUSED), COLUMN_DOWNLOAD_FLAG + "=? or " + COLUMN_DOWNLOAD_FLAG + "=?",
+                new String[]{DownloadFlag.WAITING + "", DownloadFlag.STARTED + ""}), this.recordCache::endBulk);
     }
 
     /**
@@ -124,19 +205,26 @@ public class DataBaseHelper {
      */
     @Nullable
     public DownloadRecord readSingleRecord(String url) {
+        if (this.recordCache.isDeleted(url)) {
+            return null;
+        }
+        DownloadRecord cached = this.recordCache.get(url);
+        if (cached != null) {
+            return cached;
+        }
+        long version = this.recordCache.version();
         Cursor cursor = null;
         try {
             cursor = getReadableDatabase().query(TABLE_NAME,
-                    new String[]{COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
-                            COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
-                            COLUMN_EXTRA1, COLUMN_EXTRA2, COLUMN_EXTRA3, COLUMN_EXTRA4,
-                            COLUMN_EXTRA5, COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID},
+                    COLUMNS,
                     COLUMN_URL + "=?", new String[]{url}, null, null, null);
             cursor.moveToFirst();
             if (cursor.getCount() == 0) {
                 return null;
             } else {
-                return read(cursor);
+                DownloadRecord record = read(cursor);
+                this.recordCache.put(record, version);
+                return record;
             }
         } finally {
             if (cursor != null) {
@@ -155,19 +243,9 @@ public class DataBaseHelper {
         Cursor cursor = null;
         try {
             cursor = getReadableDatabase().query(TABLE_NAME,
-                    new String[]{COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
-                            COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
-                            COLUMN_EXTRA1, COLUMN_EXTRA2, COLUMN_EXTRA3, COLUMN_EXTRA4,
-                            COLUMN_EXTRA5, COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID},
+                    COLUMNS,
                     COLUMN_MISSION_ID + "=?", new String[]{missionId}, null, null, null);
-            List<DownloadRecord> result = new ArrayList<>();
-            cursor.moveToFirst();
-            if (cursor.getCount() > 0) {
-                do {
-                    result.add(read(cursor));
-                } while (cursor.moveToNext());
-            }
-            return result;
+            return readAll(cursor);
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -182,17 +260,12 @@ public class DataBaseHelper {
      * @return download status
      */
     public DownloadStatus readStatus(String url) {
-        try (Cursor cursor = this.getReadableDatabase().query(
-                TABLE_NAME,
-                new String[]{COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED},
-                COLUMN_URL + "=?", new String[]{url}, null, null, null)) {
-            cursor.moveToFirst();
-            if (cursor.getCount() == 0) {
-                return new DownloadStatus();
-            } else {
-                return Db.RecordTable.readStatus(cursor);
-            }
+        DownloadStatus pending = this.progressCoalescer.peek(url);
+        if (pending != null) {
+            return pending;
         }
+        DownloadRecord record = this.readSingleRecord(url);
+        return record == null ? new DownloadStatus() : record.getStatus();
     }
 
     /**
@@ -206,19 +279,9 @@ public class DataBaseHelper {
                     Cursor cursor = null;
                     try {
                         cursor = getReadableDatabase().query(TABLE_NAME,
-                                new String[]{COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
-                                        COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
-                                        COLUMN_EXTRA1, COLUMN_EXTRA2, COLUMN_EXTRA3, COLUMN_EXTRA4,
-                                        COLUMN_EXTRA5, COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID},
+                                COLUMNS,
                                 null, null, null, null, null);
-                        List<DownloadRecord> result = new ArrayList<>();
-                        cursor.moveToFirst();
-                        if (cursor.getCount() > 0) {
-                            do {
-                                result.add(read(cursor));
-                            } while (cursor.moveToNext());
-                        }
-                        emitter.onNext(result);
+                        emitter.onNext(readAll(cursor));
                         emitter.onComplete();
                     } finally {
                         if (cursor != null) {
@@ -230,6 +293,33 @@ public class DataBaseHelper {
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
+    /**
+     * Read the records matching the query, one page per request.
+     * <p>
+     * Each page is one query that continues after the last id of the page before, and the next page
+     * is only read when the subscriber asks for it.
+     *
+     * @param query filter, page size and projection
+     * @return pages, the last one may be short, no page if nothing matches
+     */
+    public Flowable<List<DownloadRecord>> readRecords(final RecordQuery query) {
+        return Flowable
+                .generate(() -> new long[]{query.isNewestFirst() ? Long.MAX_VALUE : 0},
+                        (BiFunction<long[], Emitter<List<DownloadRecord>>, long[]>) (lastId, emitter) -> {
+                            List<DownloadRecord> page = this.readPage(query, lastId[0]);
+                            if (!page.isEmpty()) {
+                                lastId[0] = page.get(page.size() - 1).getId();
+                                emitter.onNext(page);
+                            }
+                            if (page.size() < query.getPageSize()) {
+                                emitter.onComplete();
+                            }
+                            return lastId;
+                        })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread(), false, 1);  //read ahead one page, not 128
+    }
+
     /**
      * Read the url's record.
      * <p>
@@ -241,26 +331,107 @@ public class DataBaseHelper {
     public Observable<DownloadRecord> readRecord(final String url) {
         return Observable
                 .create((ObservableOnSubscribe<DownloadRecord>) emitter -> {
-                    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME,
-                            new String[]{COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
-                                    COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
-                                    COLUMN_EXTRA1, COLUMN_EXTRA2, COLUMN_EXTRA3, COLUMN_EXTRA4,
-                                    COLUMN_EXTRA5, COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID},
-                            COLUMN_URL + "=?", new String[]{url}, null, null, null)) {
-                        cursor.moveToFirst();
-                        if (cursor.getCount() == 0) {
-                            emitter.onNext(new DownloadRecord());
-                        } else {
-                            emitter.onNext(read(cursor));
-                        }
-                        emitter.onComplete();
-                    }
+                    DownloadRecord record = this.readSingleRecord(url);
+                    emitter.onNext(record == null ? new DownloadRecord() : record);
+                    emitter.onComplete();
                 })
                 .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
+    /**
+     * Set how long probed url metadata is reused, and how many urls are kept.
+     *
+     * @param ttlMillis  time to live, 0 turns the cache off
+     * @param maxEntries least recently used urls beyond this are evicted
+     */
+    public void setMetadataPolicy(long ttlMillis, int maxEntries) {
+        this.metadataTtlMillis = ttlMillis;
+        this.maxMetadata = maxEntries;
+        if (ttlMillis <= 0 || maxEntries <= 0) {
+            this.write(db -> db.delete(Db.MetadataTable.TABLE_NAME, null, null));
+        }
+    }
+
+    /**
+     * Read the url's cached metadata and mark it used.
+     *
+     * @param url url
+     * @return metadata, null if not cached, expired, or the cache is off
+     */
+    @Nullable
+    public UrlMetadata readMetadata(String url) {
+        if (this.metadataTtlMillis <= 0) {
+            return null;
+        }
+        UrlMetadata metadata;
+        Cursor cursor = null;
+        try {
+            cursor = this.getReadableDatabase().query(Db.MetadataTable.TABLE_NAME, null,
+                    Db.MetadataTable.COLUMN_URL + "=?", new String[]{url}, null, null, null);
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            metadata = Db.MetadataTable.read(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (System.currentTimeMillis() - metadata.getProbeTime() > this.metadataTtlMillis) {
+            this.deleteMetadata(url);
+            return null;
+        }
+        this.write(db -> db.update(Db.MetadataTable.TABLE_NAME, Db.MetadataTable.access(),
+                Db.MetadataTable.COLUMN_URL + "=?", new String[]{url}));
+        return metadata;
+    }
+
+    /**
+     * Cache the url's metadata, evicting the least recently used urls beyond the size bound.
+     *
+     * @param metadata metadata
+     */
+    public void saveMetadata(UrlMetadata metadata) {
+        if (this.metadataTtlMillis <= 0 || this.maxMetadata <= 0) {
+            return;
+        }
+        int maxEntries = this.maxMetadata;
+        this.write(db -> {
+            db.insertWithOnConflict(Db.MetadataTable.TABLE_NAME, null, Db.MetadataTable.insert(metadata),
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            db.execSQL(Db.MetadataTable.EVICT, new Object[]{maxEntries});
+            return null;
+        });
+    }
+
+    public Future<Integer> deleteMetadata(String url) {
+        return this.write(db -> db.delete(Db.MetadataTable.TABLE_NAME,
+                Db.MetadataTable.COLUMN_URL + "=?", new String[]{url}));
+    }
+
+    /**
+     * Hit and miss counts of the record cache behind {@link #readSingleRecord(String)} and {@link #readStatus(String)}.
+     *
+     * @return stats
+     */
+    public RecordCache.Stats getRecordCacheStats() {
+        return this.recordCache.stats();
+    }
+
+    /**
+     * Block until every write made so far is committed.
+     */
+    public void awaitWrites() {
+        this.dbWriter.await();
+    }
+
+    /**
+     * Write any pending status, wait for the writer, then close.
+     */
     public void closeDataBase() {
+        this.progressCoalescer.stop();
+        this.dbWriter.await();
         synchronized (this.databaseLock) {
             this.readableDatabase = null;
             this.writableDatabase = null;
@@ -268,7 +439,115 @@ public class DataBaseHelper {
         }
     }
 
-    private SQLiteDatabase getWritableDatabase() {
+    private List<DownloadRecord> readPage(RecordQuery query, long afterId) {
+        StringBuilder selection = new StringBuilder(COLUMN_ID).append(query.isNewestFirst() ? "<?" : ">?");
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(afterId));
+        int[] flags = query.getFlags();
+        if (flags != null && flags.length > 0) {
+            selection.append(" AND ").append(COLUMN_DOWNLOAD_FLAG).append(" IN (");
+            for (int i = 0; i < flags.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args.add(String.valueOf(flags[i]));
+            }
+            selection.append(")");
+        }
+        if (!empty(query.getMissionId())) {
+            selection.append(" AND ").append(COLUMN_MISSION_ID).append("=?");
+            args.add(query.getMissionId());
+        }
+        if (query.getDateFrom() > 0) {
+            selection.append(" AND ").append(COLUMN_DATE).append(">=?");
+            args.add(String.valueOf(query.getDateFrom()));
+        }
+        if (query.getDateTo() < Long.MAX_VALUE) {
+            selection.append(" AND ").append(COLUMN_DATE).append("<?");
+            args.add(String.valueOf(query.getDateTo()));
+        }
+        Cursor cursor = null;
+        try {
+            cursor = this.getReadableDatabase().query(TABLE_NAME,
+                    query.isWithExtras() ? COLUMNS : SUMMARY_COLUMNS,
+                    selection.toString(), args.toArray(new String[0]), null, null,
+                    COLUMN_ID + (query.isNewestFirst() ? " DESC" : " ASC"), String.valueOf(query.getPageSize()));
+            return readAll(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static List<DownloadRecord> readAll(Cursor cursor) {
+        List<DownloadRecord> result = new ArrayList<>(cursor.getCount());
+        Db.RecordTable.RowMapper mapper = new Db.RecordTable.RowMapper(cursor);
+        while (cursor.moveToNext()) {
+            result.add(mapper.map(cursor));
+        }
+        return result;
+    }
+
+    /**
+     * Queue a write on the writer thread. Nothing else writes the database.
+     */
+    private <T> Future<T> write(DbWriter.Write<T> write) {
+        return this.dbWriter.submit(write);
+    }
+
+    /**
+     * Queue a write of the url's record, the cache has been told already and hears back when it commits.
+     */
+    private <T> Future<T> write(String url, DbWriter.Write<T> write) {
+        return this.dbWriter.submit(write, failed -> this.recordCache.end(url, failed));
+    }
+
+    /**
+     * The url's row as {@link Db.RecordTable#UPSERT} will leave it, for the cache to serve before it commits.
+     */
+    private DownloadRecord upserted(DownloadBean bean, int flag, String missionId, boolean keepName) {
+        DownloadRecord record = this.readSingleRecord(bean.getUrl());
+        if (record == null) {
+            record = new DownloadRecord();
+            record.setUrl(bean.getUrl());
+            record.setStatus(new DownloadStatus());
+            record.setExtra1(bean.getExtra1());
+            record.setExtra2(bean.getExtra2());
+            record.setExtra3(bean.getExtra3());
+            record.setExtra4(bean.getExtra4());
+            record.setExtra5(bean.getExtra5());
+            record.setDate(System.currentTimeMillis());
+            keepName = false;
+        }
+        if (!keepName) {
+            record.setSaveName(bean.getSaveName());
+            record.setSavePath(bean.getSavePath());
+        }
+        record.setFlag(flag);
+        if (!empty(missionId)) {
+            record.setMissionId(missionId);
+        }
+        return record;
+    }
+
+    /**
+     * Wait until the write is committed or has failed. Only for lifecycle writes, which are rare
+     * and never made on the main thread, progress stays asynchronous.
+     */
+    private <T> Future<T> commit(Future<T> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  //a cancelled download, the write still commits
+        } catch (ExecutionException e) {
+            //logged by the writer, the failure stays in the future
+        }
+        return future;
+    }
+
+    /**
+     * Only {@link DbWriter} writes through this.
+     */
+    SQLiteDatabase getWritableDatabase() {
         SQLiteDatabase db = this.writableDatabase;
         if (db == null) {
             synchronized (this.databaseLock) {
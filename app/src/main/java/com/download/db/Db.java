@@ -6,6 +6,7 @@ import android.database.Cursor;
 import com.download.entity.DownloadBean;
 import com.download.entity.DownloadRecord;
 import com.download.entity.DownloadStatus;
+import com.download.entity.UrlMetadata;
 
 import java.util.Date;
 
@@ -61,22 +62,67 @@ class Db {
         static final String ALTER_TABLE_ADD_EXTRA5 = "ALTER TABLE " + TABLE_NAME + " ADD " + COLUMN_EXTRA5 + " TEXT";
         static final String ALTER_TABLE_ADD_MISSION_ID = "ALTER TABLE " + TABLE_NAME + " ADD " + COLUMN_MISSION_ID + " TEXT";
 
-        static ContentValues insert(DownloadBean bean, int flag, String missionId) {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_URL, bean.getUrl());
-            values.put(COLUMN_SAVE_NAME, bean.getSaveName());
-            values.put(COLUMN_SAVE_PATH, bean.getSavePath());
-            values.put(COLUMN_DOWNLOAD_FLAG, flag);
-            values.put(COLUMN_EXTRA1, bean.getExtra1());
-            values.put(COLUMN_EXTRA2, bean.getExtra2());
-            values.put(COLUMN_EXTRA3, bean.getExtra3());
-            values.put(COLUMN_EXTRA4, bean.getExtra4());
-            values.put(COLUMN_EXTRA5, bean.getExtra5());
-            values.put(COLUMN_DATE, new Date().getTime());
-            if (empty(missionId)) {
-                values.put(COLUMN_MISSION_ID, missionId);
-            }
-            return values;
+        /**
+         * Keep only the newest row of each url, so the unique index can be built.
+         */
+        static final String DELETE_DUPLICATE_URL =
+                "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " NOT IN (SELECT MAX(" + COLUMN_ID + ") FROM " +
+                        TABLE_NAME + " GROUP BY " + COLUMN_URL + ")";
+
+        static final String CREATE_URL_INDEX =
+                "CREATE UNIQUE INDEX IF NOT EXISTS idx_" + TABLE_NAME + "_" + COLUMN_URL +
+                        " ON " + TABLE_NAME + " (" + COLUMN_URL + ")";
+
+        static final String CREATE_MISSION_ID_INDEX =
+                "CREATE INDEX IF NOT EXISTS idx_" + TABLE_NAME + "_" + COLUMN_MISSION_ID +
+                        " ON " + TABLE_NAME + " (" + COLUMN_MISSION_ID + ")";
+
+        /**
+         * Insert the url's row, or rewrite it in place keeping its id, progress, extras and date.
+         * <p>
+         * The existing row, if any, is joined in by the url index, so this is one statement and one lookup.
+         * Native UPSERT (ON CONFLICT DO UPDATE) needs SQLite 3.24, which older devices do not ship.
+         * Bind args are {@link #upsert(DownloadBean, int, String, boolean)}.
+         */
+        static final String UPSERT =
+                "INSERT OR REPLACE INTO " + TABLE_NAME + " (" +
+                        COLUMN_ID + ", " + COLUMN_URL + ", " + COLUMN_SAVE_NAME + ", " + COLUMN_SAVE_PATH + ", " +
+                        COLUMN_TOTAL_SIZE + ", " + COLUMN_DOWNLOAD_SIZE + ", " + COLUMN_IS_CHUNKED + ", " +
+                        COLUMN_DOWNLOAD_FLAG + ", " + COLUMN_EXTRA1 + ", " + COLUMN_EXTRA2 + ", " + COLUMN_EXTRA3 + ", " +
+                        COLUMN_EXTRA4 + ", " + COLUMN_EXTRA5 + ", " + COLUMN_DATE + ", " + COLUMN_MISSION_ID + ")" +
+                        " SELECT o." + COLUMN_ID + ", n." + COLUMN_URL + ", " +
+                        keepIfExists(COLUMN_SAVE_NAME, "n.keep_name") + ", " +
+                        keepIfExists(COLUMN_SAVE_PATH, "n.keep_name") + ", " +
+                        "o." + COLUMN_TOTAL_SIZE + ", o." + COLUMN_DOWNLOAD_SIZE + ", o." + COLUMN_IS_CHUNKED + ", " +
+                        "n." + COLUMN_DOWNLOAD_FLAG + ", " +
+                        keepIfExists(COLUMN_EXTRA1, "1") + ", " + keepIfExists(COLUMN_EXTRA2, "1") + ", " +
+                        keepIfExists(COLUMN_EXTRA3, "1") + ", " + keepIfExists(COLUMN_EXTRA4, "1") + ", " +
+                        keepIfExists(COLUMN_EXTRA5, "1") + ", " + keepIfExists(COLUMN_DATE, "1") + ", " +
+                        "COALESCE(n." + COLUMN_MISSION_ID + ", o." + COLUMN_MISSION_ID + ")" +
+                        " FROM (SELECT ? AS " + COLUMN_URL + ", ? AS " + COLUMN_SAVE_NAME + ", ? AS " + COLUMN_SAVE_PATH +
+                        ", ? AS " + COLUMN_DOWNLOAD_FLAG + ", ? AS " + COLUMN_EXTRA1 + ", ? AS " + COLUMN_EXTRA2 +
+                        ", ? AS " + COLUMN_EXTRA3 + ", ? AS " + COLUMN_EXTRA4 + ", ? AS " + COLUMN_EXTRA5 +
+                        ", ? AS " + COLUMN_DATE + ", ? AS " + COLUMN_MISSION_ID + ", ? AS keep_name) n" +
+                        " LEFT JOIN " + TABLE_NAME + " o ON o." + COLUMN_URL + " = n." + COLUMN_URL;
+
+        private static String keepIfExists(String column, String condition) {
+            return "CASE WHEN o." + COLUMN_ID + " IS NOT NULL AND " + condition +
+                    " THEN o." + column + " ELSE n." + column + " END";
+        }
+
+        /**
+         * Bind args of {@link #UPSERT}.
+         *
+         * @param bean      bean
+         * @param flag      flag
+         * @param missionId mission id, empty keeps the saved one
+         * @param keepName  keep the saved name and path if the url has a row
+         * @return args
+         */
+        static Object[] upsert(DownloadBean bean, int flag, String missionId, boolean keepName) {
+            return new Object[]{bean.getUrl(), bean.getSaveName(), bean.getSavePath(), flag,
+                    bean.getExtra1(), bean.getExtra2(), bean.getExtra3(), bean.getExtra4(), bean.getExtra5(),
+                    new Date().getTime(), empty(missionId) ? null : missionId, keepName ? 1 : 0};
         }
 
         static ContentValues update(DownloadStatus status) {
@@ -93,52 +139,166 @@ class Db {
             return values;
         }
 
-        static ContentValues update(int flag, String missionId) {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_DOWNLOAD_FLAG, flag);
-            if (empty(missionId)) {
-                values.put(COLUMN_MISSION_ID, missionId);
+        static DownloadRecord read(Cursor cursor) {
+            return new RowMapper(cursor).map(cursor);
+        }
+
+        static final String[] COLUMNS = {COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
+                COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
+                COLUMN_EXTRA1, COLUMN_EXTRA2, COLUMN_EXTRA3, COLUMN_EXTRA4,
+                COLUMN_EXTRA5, COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID};
+
+        /**
+         * Every column but the extras.
+         */
+        static final String[] SUMMARY_COLUMNS = {COLUMN_ID, COLUMN_URL, COLUMN_SAVE_NAME, COLUMN_SAVE_PATH,
+                COLUMN_DOWNLOAD_SIZE, COLUMN_TOTAL_SIZE, COLUMN_IS_CHUNKED,
+                COLUMN_DOWNLOAD_FLAG, COLUMN_DATE, COLUMN_MISSION_ID};
+
+        /**
+         * Maps rows of one cursor. Column indexes are looked up once, a column left out of the
+         * projection is left unset in the record.
+         */
+        static final class RowMapper {
+            private final int id;
+            private final int url;
+            private final int saveName;
+            private final int savePath;
+            private final int isChunked;
+            private final int downloadSize;
+            private final int totalSize;
+            private final int extra1;
+            private final int extra2;
+            private final int extra3;
+            private final int extra4;
+            private final int extra5;
+            private final int flag;
+            private final int date;
+            private final int missionId;
+
+            RowMapper(Cursor cursor) {
+                this.id = cursor.getColumnIndex(COLUMN_ID);
+                this.url = cursor.getColumnIndex(COLUMN_URL);
+                this.saveName = cursor.getColumnIndex(COLUMN_SAVE_NAME);
+                this.savePath = cursor.getColumnIndex(COLUMN_SAVE_PATH);
+                this.isChunked = cursor.getColumnIndex(COLUMN_IS_CHUNKED);
+                this.downloadSize = cursor.getColumnIndex(COLUMN_DOWNLOAD_SIZE);
+                this.totalSize = cursor.getColumnIndex(COLUMN_TOTAL_SIZE);
+                this.extra1 = cursor.getColumnIndex(COLUMN_EXTRA1);
+                this.extra2 = cursor.getColumnIndex(COLUMN_EXTRA2);
+                this.extra3 = cursor.getColumnIndex(COLUMN_EXTRA3);
+                this.extra4 = cursor.getColumnIndex(COLUMN_EXTRA4);
+                this.extra5 = cursor.getColumnIndex(COLUMN_EXTRA5);
+                this.flag = cursor.getColumnIndex(COLUMN_DOWNLOAD_FLAG);
+                this.date = cursor.getColumnIndex(COLUMN_DATE);
+                this.missionId = cursor.getColumnIndex(COLUMN_MISSION_ID);
+            }
+
+            DownloadRecord map(Cursor cursor) {
+                DownloadRecord record = new DownloadRecord();
+                if (this.id >= 0) {
+                    record.setId(cursor.getInt(this.id));
+                }
+                record.setUrl(string(cursor, this.url));
+                record.setSaveName(string(cursor, this.saveName));
+                record.setSavePath(string(cursor, this.savePath));
+                if (this.downloadSize >= 0) {
+                    record.setStatus(new DownloadStatus(this.isChunked >= 0 && cursor.getInt(this.isChunked) > 0,
+                            cursor.getLong(this.downloadSize), this.totalSize >= 0 ? cursor.getLong(this.totalSize) : 0));
+                }
+                record.setExtra1(string(cursor, this.extra1));
+                record.setExtra2(string(cursor, this.extra2));
+                record.setExtra3(string(cursor, this.extra3));
+                record.setExtra4(string(cursor, this.extra4));
+                record.setExtra5(string(cursor, this.extra5));
+                if (this.flag >= 0) {
+                    record.setFlag(cursor.getInt(this.flag));
+                }
+                if (this.date >= 0) {
+                    record.setDate(cursor.getLong(this.date));
+                }
+                record.setMissionId(string(cursor, this.missionId));
+                return record;
+            }
+
+            private static String string(Cursor cursor, int index) {
+                return index >= 0 ? cursor.getString(index) : null;
             }
-            return values;
         }
+    }
+
+    static final class MetadataTable {
+        static final String TABLE_NAME = "url_metadata";
+
+        static final String COLUMN_URL = "url";
+        static final String COLUMN_CONTENT_LENGTH = "content_length";
+        static final String COLUMN_LAST_MODIFY = "last_modify";
+        static final String COLUMN_ETAG = "etag";
+        static final String COLUMN_RANGE_SUPPORT = "range_support";
+        static final String COLUMN_FILE_NAME = "file_name";
+        static final String COLUMN_DIGEST = "digest";
+        static final String COLUMN_CONTENT_MD5 = "content_md5";
+        static final String COLUMN_PROBE_TIME = "probe_time";
+        static final String COLUMN_ACCESS_TIME = "access_time";
+
+        static final String CREATE =
+                "CREATE TABLE " + TABLE_NAME + " (" +
+                        COLUMN_URL + " TEXT PRIMARY KEY NOT NULL," +
+                        COLUMN_CONTENT_LENGTH + " INTEGER," +
+                        COLUMN_LAST_MODIFY + " TEXT," +
+                        COLUMN_ETAG + " TEXT," +
+                        COLUMN_RANGE_SUPPORT + " INTEGER," +
+                        COLUMN_FILE_NAME + " TEXT," +
+                        COLUMN_DIGEST + " TEXT," +
+                        COLUMN_CONTENT_MD5 + " TEXT," +
+                        COLUMN_PROBE_TIME + " INTEGER NOT NULL," +
+                        COLUMN_ACCESS_TIME + " INTEGER NOT NULL" +
+                        " )";
+
+        static final String CREATE_ACCESS_INDEX =
+                "CREATE INDEX IF NOT EXISTS idx_" + TABLE_NAME + "_" + COLUMN_ACCESS_TIME +
+                        " ON " + TABLE_NAME + " (" + COLUMN_ACCESS_TIME + ")";
+
+        /**
+         * Keep the maxEntries most recently used rows.
+         */
+        static final String EVICT =
+                "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_URL + " NOT IN (SELECT " + COLUMN_URL +
+                        " FROM " + TABLE_NAME + " ORDER BY " + COLUMN_ACCESS_TIME + " DESC LIMIT ?)";
 
-        static ContentValues update(String saveName, String savePath, int flag) {
+        static ContentValues insert(UrlMetadata metadata) {
             ContentValues values = new ContentValues();
-            values.put(COLUMN_SAVE_NAME, saveName);
-            values.put(COLUMN_SAVE_PATH, savePath);
-            values.put(COLUMN_DOWNLOAD_FLAG, flag);
+            values.put(COLUMN_URL, metadata.getUrl());
+            values.put(COLUMN_CONTENT_LENGTH, metadata.getContentLength());
+            values.put(COLUMN_LAST_MODIFY, metadata.getLastModify());
+            values.put(COLUMN_ETAG, metadata.getETag());
+            values.put(COLUMN_RANGE_SUPPORT, metadata.isRangeSupport());
+            values.put(COLUMN_FILE_NAME, metadata.getFileName());
+            values.put(COLUMN_DIGEST, metadata.getDigest());
+            values.put(COLUMN_CONTENT_MD5, metadata.getContentMd5());
+            values.put(COLUMN_PROBE_TIME, metadata.getProbeTime());
+            values.put(COLUMN_ACCESS_TIME, new Date().getTime());
             return values;
         }
 
-        static DownloadStatus readStatus(Cursor cursor) {
-            boolean isChunked = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_IS_CHUNKED)) > 0;
-            long downloadSize = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DOWNLOAD_SIZE));
-            long totalSize = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE));
-            return new DownloadStatus(isChunked, downloadSize, totalSize);
+        static ContentValues access() {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_ACCESS_TIME, new Date().getTime());
+            return values;
         }
 
-        static DownloadRecord read(Cursor cursor) {
-            DownloadRecord record = new DownloadRecord();
-            record.setId(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_ID)));
-            record.setUrl(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL)));
-            record.setSaveName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_SAVE_NAME)));
-            record.setSavePath(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_SAVE_PATH)));
-
-            boolean isChunked = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_IS_CHUNKED)) > 0;
-            long downloadSize = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DOWNLOAD_SIZE));
-            long totalSize = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE));
-            record.setStatus(new DownloadStatus(isChunked, downloadSize, totalSize));
-
-            record.setExtra1(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_EXTRA1)));
-            record.setExtra2(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_EXTRA2)));
-            record.setExtra3(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_EXTRA3)));
-            record.setExtra4(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_EXTRA4)));
-            record.setExtra5(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_EXTRA5)));
-
-            record.setFlag(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_DOWNLOAD_FLAG)));
-            record.setDate(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DATE)));
-            record.setMissionId(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MISSION_ID)));
-            return record;
+        static UrlMetadata read(Cursor cursor) {
+            UrlMetadata metadata = new UrlMetadata();
+            metadata.setUrl(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL)));
+            metadata.setContentLength(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_CONTENT_LENGTH)));
+            metadata.setLastModify(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFY)));
+            metadata.setETag(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ETAG)));
+            metadata.setRangeSupport(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_RANGE_SUPPORT)) > 0);
+            metadata.setFileName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FILE_NAME)));
+            metadata.setDigest(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DIGEST)));
+            metadata.setContentMd5(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_CONTENT_MD5)));
+            metadata.setProbeTime(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_PROBE_TIME)));
+            return metadata;
         }
     }
 }
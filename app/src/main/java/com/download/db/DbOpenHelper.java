@@ -7,10 +7,11 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class DbOpenHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "zlc_season_rxdownload_download.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 4;
 
     DbOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.setWriteAheadLoggingEnabled(true);  //readers are not blocked by the writer thread
     }
 
     @Override
@@ -18,6 +19,10 @@ public class DbOpenHelper extends SQLiteOpenHelper {
         db.beginTransaction();
         try {
             db.execSQL(Db.RecordTable.CREATE);
+            db.execSQL(Db.RecordTable.CREATE_URL_INDEX);
+            db.execSQL(Db.RecordTable.CREATE_MISSION_ID_INDEX);
+            db.execSQL(Db.MetadataTable.CREATE);
+            db.execSQL(Db.MetadataTable.CREATE_ACCESS_INDEX);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -26,7 +31,7 @@ public class DbOpenHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion == 1 && newVersion == 2) {
+        if (oldVersion < 2) {
             db.beginTransaction();
             try {
                 db.execSQL(Db.RecordTable.ALTER_TABLE_ADD_EXTRA1);
@@ -40,5 +45,26 @@ public class DbOpenHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         }
+        if (oldVersion < 3) {
+            db.beginTransaction();
+            try {
+                db.execSQL(Db.MetadataTable.CREATE);
+                db.execSQL(Db.MetadataTable.CREATE_ACCESS_INDEX);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 4) {
+            db.beginTransaction();
+            try {
+                db.execSQL(Db.RecordTable.DELETE_DUPLICATE_URL);
+                db.execSQL(Db.RecordTable.CREATE_URL_INDEX);
+                db.execSQL(Db.RecordTable.CREATE_MISSION_ID_INDEX);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
 }
@@ -0,0 +1,200 @@
+package com.download.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.download.function.DownloadMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static com.download.function.Constant.DB_BATCH_REPLAYED;
+import static com.download.function.Constant.DB_WRITE_FAILED;
+import static com.download.function.Utils.log;
+
+/**
+ * The only thread that writes the database.
+ * <p>
+ * Writes are queued and run in order. Everything queued while the previous transaction was committing
+ * goes into the next one, so a burst of writes costs one commit instead of one each. The future of a
+ * write completes once its transaction is committed. With write-ahead logging, readers on other threads
+ * keep reading the last committed state and never wait for this thread.
+ */
+class DbWriter {
+    private static final int MAX_BATCH = 64;
+
+    private final DataBaseHelper dataBaseHelper;
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private Thread thread;
+
+    DbWriter(DataBaseHelper dataBaseHelper) {
+        this.dataBaseHelper = dataBaseHelper;
+    }
+
+    /**
+     * Queue a write.
+     *
+     * @param write write, must not open its own transaction
+     * @return future of the write's result, done when committed
+     */
+    <T> Future<T> submit(Write<T> write) {
+        return this.submit(write, null);
+    }
+
+    /**
+     * Queue a write.
+     *
+     * @param write write, must not open its own transaction
+     * @param done  called on the writer thread once the write is committed or has failed, before its future
+     *              completes, may be null
+     * @return future of the write's result, done when committed
+     */
+    <T> Future<T> submit(Write<T> write, Done done) {
+        this.ensureThread();
+        Pending<T> pending = new Pending<>(write, done);
+        this.queue.add(pending);
+        return pending;
+    }
+
+    /**
+     * Block until every write queued so far is committed.
+     */
+    void await() {
+        try {
+            this.submit(db -> null).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //nothing to report, each write's failure goes to its own future
+        }
+    }
+
+    private synchronized void ensureThread() {
+        if (this.thread == null) {
+            this.thread = new Thread(this::loop, "RxDownload-db");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    private void loop() {
+        List<Pending<?>> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException e) {
+                continue;  //the writer lives as long as the process
+            }
+            this.queue.drainTo(batch, MAX_BATCH - 1);
+            long begin = System.nanoTime();
+            if (!this.commit(batch)) {
+                log(DB_BATCH_REPLAYED, batch.size());
+                for (Pending<?> each : batch) {
+                    this.commit(each);
+                }
+            }
+            DownloadMetrics.recordNanos(DownloadMetrics.DB_WRITE, System.nanoTime() - begin);
+            DownloadMetrics.count(DownloadMetrics.DB_WRITES, batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Run the batch in one transaction.
+     *
+     * @return false if anything failed, then nothing is committed and no future is completed
+     */
+    private boolean commit(List<Pending<?>> batch) {
+        if (batch.size() == 1) {
+            this.commit(batch.get(0));
+            return true;
+        }
+        List<Object> results = new ArrayList<>(batch.size());
+        try {
+            SQLiteDatabase db = this.dataBaseHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Pending<?> each : batch) {
+                    results.add(each.write.run(db));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).complete(results.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Run one write in its own transaction, so its failure rolls back only itself.
+     */
+    private void commit(Pending<?> pending) {
+        Object result;
+        try {
+            SQLiteDatabase db = this.dataBaseHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                result = pending.write.run(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            log(DB_WRITE_FAILED, e.getMessage());
+            pending.fail(e);
+            return;
+        }
+        pending.complete(result);
+    }
+
+    /**
+     * A write against the open database.
+     */
+    interface Write<T> {
+        T run(SQLiteDatabase db);
+    }
+
+    interface Done {
+        void onDone(boolean failed);
+    }
+
+    private static class Pending<T> extends FutureTask<T> {
+        final Write<T> write;
+        final Done done;
+
+        Pending(Write<T> write, Done done) {
+            super(() -> null);  //never run, completed by the writer after the commit
+            this.write = write;
+            this.done = done;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            this.runDone(false);
+            this.set((T) result);
+        }
+
+        void fail(Throwable throwable) {
+            this.runDone(true);
+            this.setException(throwable);
+        }
+
+        /**
+         * Not {@link #done()}, which a cancel of the future would also trigger before the write ran.
+         */
+        private void runDone(boolean failed) {
+            if (this.done != null) {
+                this.done.onDone(failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.download.db;
+
+import com.download.entity.DownloadStatus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+import static com.download.function.Utils.dispose;
+
+/**
+ * Keeps the latest {@link DownloadStatus} of every url in memory and writes them to the
+ * record table in one transaction, instead of one UPDATE per network read.
+ * <p>
+ * A flush happens every flush interval, as soon as a url has moved byteDelta bytes since its
+ * last flush, and on every lifecycle edge through {@link #flush(String)} / {@link #flushAll()}.
+ * Flushes take and submit their statuses under one lock, so the writes reach the database in the
+ * order the statuses were taken. The timer runs only while some url has an entry.
+ */
+class ProgressCoalescer {
+    private final DataBaseHelper dataBaseHelper;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Object flushLock = new Object();
+
+    private volatile long intervalMillis = 1000;
+    private volatile long byteDelta = 2 * 1024 * 1024;
+    private Disposable timer;
+
+    ProgressCoalescer(DataBaseHelper dataBaseHelper) {
+        this.dataBaseHelper = dataBaseHelper;
+    }
+
+    synchronized void setPolicy(long intervalMillis, long byteDelta) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        this.intervalMillis = intervalMillis;
+        this.byteDelta = byteDelta;
+        dispose(this.timer);
+        this.timer = null;
+        if (!this.entries.isEmpty()) {
+            this.startTimer();
+        }
+    }
+
+    void post(String url, DownloadStatus status) {
+        Entry entry = this.entries.get(url);
+        if (entry == null) {
+            entry = new Entry();
+            Entry exists = this.entries.putIfAbsent(url, entry);
+            if (exists != null) {
+                entry = exists;
+            } else {
+                this.ensureTimer();
+            }
+        }
+
+        boolean reached;
+        synchronized (entry) {
+            entry.status.isChunked = status.isChunked;
+            entry.status.setDownloadSize(status.getDownloadSize());
+            entry.status.setTotalSize(status.getTotalSize());
+            entry.dirty = true;
+            reached = Math.abs(status.getDownloadSize() - entry.flushedSize) >= this.byteDelta;
+        }
+
+        if (reached && this.flushScheduled.compareAndSet(false, true)) {
+            Schedulers.single().scheduleDirect(() -> {
+                this.flushScheduled.set(false);
+                this.flushAll();
+            });
+        }
+    }
+
+    /**
+     * Latest status not yet written, or null.
+     *
+     * @param url url
+     * @return a copy of the pending status
+     */
+    DownloadStatus peek(String url) {
+        Entry entry = this.entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return new DownloadStatus(entry.status.isChunked, entry.status.getDownloadSize(), entry.status.getTotalSize());
+        }
+    }
+
+    /**
+     * Write the url's pending status and forget it. Called on pause, error and complete.
+     *
+     * @param url url
+     */
+    void flush(String url) {
+        Entry entry = this.entries.remove(url);
+        if (entry == null) {
+            return;
+        }
+        synchronized (this.flushLock) {
+            DownloadStatus status = this.take(entry);
+            if (status != null) {
+                this.dataBaseHelper.updateStatus(url, status);
+            }
+        }
+        if (this.entries.isEmpty()) {
+            this.stopTimerIfIdle();
+        }
+    }
+
+    void flushAll() {
+        synchronized (this.flushLock) {
+            Map<String, DownloadStatus> batch = new HashMap<>();
+            for (Map.Entry<String, Entry> each : this.entries.entrySet()) {
+                DownloadStatus status = this.take(each.getValue());
+                if (status != null) {
+                    batch.put(each.getKey(), status);
+                }
+            }
+            if (!batch.isEmpty()) {
+                this.dataBaseHelper.updateStatus(batch);
+            }
+        }
+    }
+
+    synchronized void stop() {
+        dispose(this.timer);
+        this.timer = null;
+        this.flushAll();
+        this.entries.clear();
+    }
+
+    private DownloadStatus take(Entry entry) {
+        synchronized (entry) {
+            if (!entry.dirty) {
+                return null;
+            }
+            entry.dirty = false;
+            entry.flushedSize = entry.status.getDownloadSize();
+            return new DownloadStatus(entry.status.isChunked, entry.status.getDownloadSize(), entry.status.getTotalSize());
+        }
+    }
+
+    private synchronized void ensureTimer() {
+        if (this.timer == null) {
+            this.startTimer();
+        }
+    }
+
+    /**
+     * Checked under the same lock as {@link #ensureTimer()}, a url posted meanwhile starts a new timer.
+     */
+    private synchronized void stopTimerIfIdle() {
+        if (this.entries.isEmpty()) {
+            dispose(this.timer);
+            this.timer = null;
+        }
+    }
+
+    private void startTimer() {
+        this.timer = Schedulers.single().schedulePeriodicallyDirect(this::flushAll,
+                this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static class Entry {
+        final DownloadStatus status = new DownloadStatus();
+        long flushedSize;
+        boolean dirty;
+    }
+}
@@ -0,0 +1,231 @@
+package com.download.db;
+
+import com.download.entity.DownloadRecord;
+import com.download.entity.DownloadStatus;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.download.entity.DownloadFlag.PAUSED;
+import static com.download.entity.DownloadFlag.STARTED;
+import static com.download.entity.DownloadFlag.WAITING;
+
+/**
+ * Least recently used copies of record rows, keyed by url, in front of the record table.
+ * <p>
+ * The write path updates a cached row as soon as a write is queued, so the cache is never behind
+ * the database. An upserted row is cached as it will be once written, a deleted url is marked deleted
+ * until its delete commits, so reads see both before the writer gets to them. Rows with writes still
+ * waiting are not evicted. A row read from the database is only cached if no write touched it while
+ * the query ran and no write of its url is still waiting to commit, otherwise it could be older than
+ * the database. Rows go in and out as copies, callers may change what they get.
+ */
+public class RecordCache {
+    static final int MAX_ENTRIES = 1000;
+
+    private final Map<String, DownloadRecord> map;
+    private final Map<String, Integer> pendingWrites = new HashMap<>();
+    private final Set<String> deleted = new HashSet<>();
+    private int pendingBulkWrites;
+    private long version;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejected;
+
+    RecordCache(final int maxEntries) {
+        this.map = new LinkedHashMap<String, DownloadRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DownloadRecord> eldest) {
+                if (size() > maxEntries && !pendingWrites.containsKey(eldest.getKey())) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Copy of the cached row.
+     *
+     * @param url url
+     * @return row, null on a miss
+     */
+    synchronized DownloadRecord get(String url) {
+        DownloadRecord record = this.map.get(url);
+        if (record == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return copy(record);
+    }
+
+    /**
+     * @param url url
+     * @return true if the url's delete is queued and not committed yet
+     */
+    synchronized boolean isDeleted(String url) {
+        return this.deleted.contains(url);
+    }
+
+    /**
+     * Taken before a query, handed back to {@link #put(DownloadRecord, long)}.
+     */
+    synchronized long version() {
+        return this.version;
+    }
+
+    /**
+     * Cache a row read from the database.
+     *
+     * @param record  row
+     * @param version {@link #version()} taken before the query
+     */
+    synchronized void put(DownloadRecord record, long version) {
+        String url = record.getUrl();
+        if (version != this.version || this.pendingBulkWrites > 0 || this.pendingWrites.containsKey(url)) {
+            this.rejected++;
+            return;
+        }
+        this.map.put(url, copy(record));
+    }
+
+    /**
+     * An upsert of the row is queued, the row is cached as it will be written.
+     *
+     * @param record row after the upsert
+     */
+    synchronized void upsert(DownloadRecord record) {
+        this.begin(record.getUrl());
+        this.deleted.remove(record.getUrl());
+        this.map.put(record.getUrl(), copy(record));
+    }
+
+    /**
+     * A delete of the url is queued, it reads as deleted from now on.
+     */
+    synchronized void delete(String url) {
+        this.begin(url);
+        this.map.remove(url);
+        this.deleted.add(url);
+    }
+
+    synchronized void updateStatus(String url, DownloadStatus status) {
+        this.begin(url);
+        DownloadRecord record = this.map.get(url);
+        if (record != null) {
+            record.setStatus(new DownloadStatus(status.isChunked, status.getDownloadSize(), status.getTotalSize()));
+        }
+    }
+
+    synchronized void updateFlag(String url, int flag) {
+        this.begin(url);
+        DownloadRecord record = this.map.get(url);
+        if (record != null) {
+            record.setFlag(flag);
+        }
+    }
+
+    /**
+     * Same as the repair of the record table: waiting and started rows become paused.
+     */
+    synchronized void repairErrorFlag() {
+        this.version++;
+        this.pendingBulkWrites++;
+        for (DownloadRecord each : this.map.values()) {
+            if (each.getFlag() == WAITING || each.getFlag() == STARTED) {
+                each.setFlag(PAUSED);
+            }
+        }
+    }
+
+    /**
+     * The url's write is committed, or failed. A failed write leaves the row unknown, so it is dropped.
+     */
+    synchronized void end(String url, boolean failed) {
+        Integer count = this.pendingWrites.remove(url);
+        if (count != null && count > 1) {
+            this.pendingWrites.put(url, count - 1);
+        } else {
+            this.deleted.remove(url);  //the database has caught up
+            DownloadRecord record = this.map.get(url);
+            if (record != null && record.getId() == 0) {
+                this.map.remove(url);  //inserted without its id, the next read caches it with one
+            }
+        }
+        if (failed) {
+            this.deleted.remove(url);
+            this.version++;
+            this.map.remove(url);
+        }
+    }
+
+    synchronized void endBulk(boolean failed) {
+        this.pendingBulkWrites--;
+        if (failed) {
+            this.version++;
+            this.map.clear();
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(this.map.size(), this.hits, this.misses, this.evictions, this.rejected);
+    }
+
+    private void begin(String url) {
+        this.version++;
+        Integer count = this.pendingWrites.get(url);
+        this.pendingWrites.put(url, count == null ? 1 : count + 1);
+    }
+
+    private static DownloadRecord copy(DownloadRecord record) {
+        DownloadRecord copy = new DownloadRecord();
+        copy.setId(record.getId());
+        copy.setUrl(record.getUrl());
+        copy.setSaveName(record.getSaveName());
+        copy.setSavePath(record.getSavePath());
+        DownloadStatus status = record.getStatus();
+        if (status != null) {
+            copy.setStatus(new DownloadStatus(status.isChunked, status.getDownloadSize(), status.getTotalSize()));
+        }
+        copy.setFlag(record.getFlag());
+        copy.setExtra1(record.getExtra1());
+        copy.setExtra2(record.getExtra2());
+        copy.setExtra3(record.getExtra3());
+        copy.setExtra4(record.getExtra4());
+        copy.setExtra5(record.getExtra5());
+        copy.setDate(record.getDate());
+        copy.setMissionId(record.getMissionId());
+        return copy;
+    }
+
+    /**
+     * Snapshot of the cache. Rejected counts rows read while a write of theirs was in flight, which were not cached.
+     */
+    public static class Stats {
+        public final int size;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long rejected;
+
+        Stats(int size, long hits, long misses, long evictions, long rejected) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejected = rejected;
+        }
+
+        public double hitRate() {
+            long total = this.hits + this.misses;
+            return total == 0 ? 0 : (double) this.hits / total;
+        }
+    }
+}
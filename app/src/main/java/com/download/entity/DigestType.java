@@ -0,0 +1,8 @@
+package com.download.entity;
+
+public class DigestType {
+    public static final int NONE = 0;
+    public static final int SHA256 = 1;
+    public static final int MD5 = 2;
+    public static final int CRC32C = 3;  //Castagnoli, 4 bytes big-endian
+}
@@ -9,6 +9,12 @@ public class DownloadBean {
     private String extra3;
     private String extra4;
     private String extra5;
+    private int sinkType = SinkType.DEFAULT;
+    private int priority = DownloadPriority.NORMAL;
+    private int weight;
+    private int digestType = DigestType.NONE;
+    private String digest;
+    private String missionId;
 
     public DownloadBean() {
     }
@@ -77,6 +83,60 @@ public class DownloadBean {
         this.extra5 = extra5;
     }
 
+    public int getSinkType() {
+        return sinkType;
+    }
+
+    public void setSinkType(int sinkType) {
+        this.sinkType = sinkType;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Share of the link while fair sharing is on. Unless set, it follows the priority: 1, 2, 4 and 8.
+     */
+    public int getWeight() {
+        if (weight > 0) {
+            return weight;
+        }
+        return 1 << Math.max(DownloadPriority.LOW, Math.min(priority, DownloadPriority.URGENT));
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Id of the service mission the download belongs to, null for a direct download.
+     */
+    public String getMissionId() {
+        return missionId;
+    }
+
+    void setMissionId(String missionId) {
+        this.missionId = missionId;
+    }
+
+    public int getDigestType() {
+        return digestType;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(int digestType, String digest) {
+        this.digestType = digestType;
+        this.digest = digest;
+    }
+
     public static class Builder {
         private String url;
         private String saveName;
@@ -86,6 +146,11 @@ public class DownloadBean {
         private String extra3;
         private String extra4;
         private String extra5;
+        private int sinkType = SinkType.DEFAULT;
+        private int priority = DownloadPriority.NORMAL;
+        private int weight;
+        private int digestType = DigestType.NONE;
+        private String digest;
 
         public Builder(String url) {
             this.url = url;
@@ -126,6 +191,54 @@ public class DownloadBean {
             return this;
         }
 
+        /**
+         * Select how this download writes its ranges, see {@link SinkType}.
+         *
+         * @param sinkType sink type
+         * @return builder
+         */
+        public Builder setSinkType(int sinkType) {
+            this.sinkType = sinkType;
+            return this;
+        }
+
+        /**
+         * Order of this download in the service queue, see {@link DownloadPriority}.
+         *
+         * @param priority priority
+         * @return builder
+         */
+        public Builder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Share of the link this download gets while fair sharing is on, against the other running downloads.
+         * 0, the default, derives it from the priority.
+         *
+         * @param weight weight
+         * @return builder
+         */
+        public Builder setWeight(int weight) {
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * Verify the downloaded file against this digest, see {@link DigestType}.
+         * Without it the Digest or Content-MD5 response header is used, if the server sends one.
+         *
+         * @param digestType digest type
+         * @param digest     expected digest in hex
+         * @return builder
+         */
+        public Builder setDigest(int digestType, String digest) {
+            this.digestType = digestType;
+            this.digest = digest;
+            return this;
+        }
+
         public DownloadBean build() {
             DownloadBean bean = new DownloadBean();
             bean.url = this.url;
@@ -136,6 +249,11 @@ public class DownloadBean {
             bean.extra3 = this.extra3;
             bean.extra4 = this.extra4;
             bean.extra5 = this.extra5;
+            bean.sinkType = this.sinkType;
+            bean.priority = this.priority;
+            bean.weight = this.weight;
+            bean.digestType = this.digestType;
+            bean.digest = this.digest;
             return bean;
         }
     }
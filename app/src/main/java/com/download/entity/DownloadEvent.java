@@ -1,10 +1,22 @@
 package com.download.entity;
 
 public class DownloadEvent {
+    private String url;
     private int flag = DownloadFlag.NORMAL;
     private DownloadStatus downloadStatus = new DownloadStatus();
     private Throwable mError;
 
+    /**
+     * The url, or missionId, the event is about.
+     */
+    public String getUrl() {
+        return this.url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
     public int getFlag() {
         return this.flag;
     }
@@ -11,4 +11,5 @@ public class DownloadFlag {
     public static final int INSTALL = 9997;
     public static final int INSTALLED = 9998;
     public static final int DELETED = 9999;
+    public static final int VERIFY_FAILED = 10000;  //downloaded, but the digest does not match
 }
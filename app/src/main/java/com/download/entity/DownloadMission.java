@@ -2,18 +2,18 @@ package com.download.entity;
 
 import com.download.RxDownload;
 import com.download.db.DataBaseHelper;
+import com.download.function.EventHub;
+import com.download.function.MissionScheduler;
 
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-
-import io.reactivex.processors.FlowableProcessor;
 
 public abstract class DownloadMission {
 
     protected RxDownload rxdownload;
-    FlowableProcessor<DownloadEvent> processor;
-    private boolean canceled = false;
-    private boolean completed = false;
+    EventHub hub;
+    private volatile DownloadEvent lastEvent;
+    private volatile boolean canceled = false;
+    private volatile boolean completed = false;
 
     DownloadMission(RxDownload rxdownload) {
         this.rxdownload = rxdownload;
@@ -35,13 +35,44 @@ public abstract class DownloadMission {
         this.completed = completed;
     }
 
+    /**
+     * The last event the mission sent, to start a new subscriber from. Only kept while the mission
+     * waits or runs, once it stopped its record tells the state.
+     *
+     * @return event, null before init and after the mission stopped
+     */
+    public DownloadEvent getLastEvent() {
+        return lastEvent;
+    }
+
+    void emit(DownloadEvent event) {
+        int flag = event.getFlag();
+        this.lastEvent = flag == DownloadFlag.WAITING || flag == DownloadFlag.STARTED ? event : null;
+        if (this.hub != null) {
+            this.hub.publish(getUrl(), event);
+        }
+    }
+
     public abstract String getUrl();
 
-    public abstract void init(Map<String, DownloadMission> missionMap, Map<String, FlowableProcessor<DownloadEvent>> processorMap);
+    public abstract void init(Map<String, DownloadMission> missionMap, EventHub hub);
 
     public abstract void insertOrUpdate(DataBaseHelper dataBaseHelper);
 
-    public abstract void start(final Semaphore semaphore) throws InterruptedException;
+    /**
+     * Queue the mission's downloads for a slot.
+     *
+     * @param scheduler      scheduler
+     * @param dataBaseHelper DataBaseHelper
+     */
+    public abstract void start(MissionScheduler scheduler, DataBaseHelper dataBaseHelper);
+
+    /**
+     * Change the priority, also of a queued mission, see {@link DownloadPriority}.
+     *
+     * @param priority priority
+     */
+    public abstract void setPriority(int priority);
 
     public abstract void pause(DataBaseHelper dataBaseHelper);
 
@@ -0,0 +1,8 @@
+package com.download.entity;
+
+public class DownloadPriority {
+    public static final int LOW = 0;
+    public static final int NORMAL = 1;
+    public static final int HIGH = 2;
+    public static final int URGENT = 3;  //pauses a lower priority download if no slot is free
+}
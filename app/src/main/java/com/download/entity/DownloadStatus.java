@@ -24,6 +24,12 @@ public class DownloadStatus implements Parcelable {
     public boolean isChunked = false;
     private long totalSize;
     private long downloadSize;
+    private int connections;
+    private int targetConnections;
+    private long bytesPerSecond;
+    private long instantBytesPerSecond;
+    private long etaMillis = -1;
+    private long lastByteMillis = Long.MIN_VALUE;
 
     public DownloadStatus() {
 
@@ -44,6 +50,12 @@ public class DownloadStatus implements Parcelable {
         this.isChunked = in.readByte() != 0;
         this.totalSize = in.readLong();
         this.downloadSize = in.readLong();
+        this.connections = in.readInt();
+        this.targetConnections = in.readInt();
+        this.bytesPerSecond = in.readLong();
+        this.instantBytesPerSecond = in.readLong();
+        this.etaMillis = in.readLong();
+        this.lastByteMillis = in.readLong();
     }
 
     public long getTotalSize() {
@@ -62,6 +74,88 @@ public class DownloadStatus implements Parcelable {
         this.downloadSize = downloadSize;
     }
 
+    /**
+     * Range connections the download currently keeps open, 0 for a single connection download.
+     *
+     * @return connections
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Range connections the download decided to keep. Changes with every connection added or dropped,
+     * before the connections actually open or close.
+     *
+     * @return connections, 0 for a single connection download
+     */
+    public int getTargetConnections() {
+        return targetConnections;
+    }
+
+    public void setTargetConnections(int targetConnections) {
+        this.targetConnections = targetConnections;
+    }
+
+    /**
+     * Smoothed throughput, a moving average over the last seconds.
+     *
+     * @return bytes per second
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Throughput of the last quarter second.
+     *
+     * @return bytes per second
+     */
+    public long getInstantBytesPerSecond() {
+        return instantBytesPerSecond;
+    }
+
+    public void setInstantBytesPerSecond(long instantBytesPerSecond) {
+        this.instantBytesPerSecond = instantBytesPerSecond;
+    }
+
+    /**
+     * Time left at the smoothed throughput.
+     *
+     * @return millis, -1 if unknown
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    public void setEtaMillis(long etaMillis) {
+        this.etaMillis = etaMillis;
+    }
+
+    /**
+     * Time since the download last read a byte, counted from now, so an old status shows a stall.
+     *
+     * @return millis, -1 if nothing was read yet
+     */
+    public long getMillisSinceLastByte() {
+        return this.lastByteMillis == Long.MIN_VALUE ? -1 : System.nanoTime() / 1000_000L - this.lastByteMillis;
+    }
+
+    /**
+     * @param lastByteMillis time of the last byte on the {@link System#nanoTime()} clock, in millis
+     */
+    public void setLastByteMillis(long lastByteMillis) {
+        this.lastByteMillis = lastByteMillis;
+    }
+
     /**
      * 获得格式化的总Size
      *
@@ -128,5 +222,11 @@ public class DownloadStatus implements Parcelable {
         dest.writeByte(this.isChunked ? (byte) 1 : (byte) 0);
         dest.writeLong(this.totalSize);
         dest.writeLong(this.downloadSize);
+        dest.writeInt(this.connections);
+        dest.writeInt(this.targetConnections);
+        dest.writeLong(this.bytesPerSecond);
+        dest.writeLong(this.instantBytesPerSecond);
+        dest.writeLong(this.etaMillis);
+        dest.writeLong(this.lastByteMillis);
     }
 }
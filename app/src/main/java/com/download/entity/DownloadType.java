@@ -1,22 +1,26 @@
 package com.download.entity;
 
+import com.download.function.ConnectionController;
 import com.download.function.Utils;
 
 import org.reactivestreams.Publisher;
 
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.functions.Function;
+import io.reactivex.processors.PublishProcessor;
 import io.reactivex.schedulers.Schedulers;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
+import static com.download.function.ConnectionController.SAMPLE_MILLIS;
 import static com.download.function.Constant.ALREADY_DOWNLOAD_HINT;
 import static com.download.function.Constant.CONTINUE_DOWNLOAD_CANCEL;
 import static com.download.function.Constant.CONTINUE_DOWNLOAD_COMPLETED;
@@ -63,7 +67,7 @@ public abstract class DownloadType {
                 .doOnNext(status -> record.update(status))
                 .doOnError(throwable -> {
                     log(this.errorLog());
-                    this.record.error();
+                    this.record.error(throwable);
                 })
                 .doOnComplete(() -> {
                     log(this.completeLog());
@@ -106,18 +110,15 @@ public abstract class DownloadType {
         return "";
     }
 
-    public static class NormalDownload extends DownloadType {
+    /**
+     * Single connection download that keeps the bytes already in the file and asks for the rest.
+     */
+    public static class ContinueNormalDownload extends DownloadType {
 
-        public NormalDownload(TemporaryRecord record) {
+        public ContinueNormalDownload(TemporaryRecord record) {
             super(record);
         }
 
-        @Override
-        public void prepareDownload() throws IOException, ParseException {
-            super.prepareDownload();
-            this.record.prepareNormalDownload();
-        }
-
         @Override
         protected Publisher<DownloadStatus> download() {
             return this.record.download()
@@ -160,6 +161,19 @@ public abstract class DownloadType {
         }
     }
 
+    public static class NormalDownload extends ContinueNormalDownload {
+
+        public NormalDownload(TemporaryRecord record) {
+            super(record);
+        }
+
+        @Override
+        public void prepareDownload() throws IOException, ParseException {
+            super.prepareDownload();
+            this.record.prepareNormalDownload();
+        }
+    }
+
     public static class ContinueDownload extends DownloadType {
 
         public ContinueDownload(TemporaryRecord record) {
@@ -168,11 +182,22 @@ public abstract class DownloadType {
 
         @Override
         protected Publisher<DownloadStatus> download() {
-            List<Publisher<DownloadStatus>> tasks = new ArrayList<>();
-            for (int i = 0; i < this.record.getMaxThreads(); i++) {
-                tasks.add(this.rangeDownload(i));
-            }
-            return Flowable.mergeDelayError(tasks);
+            return Flowable.defer(() -> {
+                ConnectionController controller = this.record.openSegments(this.record.getMaxThreads());
+                PublishProcessor<Integer> idle = PublishProcessor.create();
+                Flowable<Publisher<DownloadStatus>> workers = Flowable.range(0, controller.initial())
+                        .map(i -> this.connection(controller, idle));
+                if (controller.adaptive()) {
+                    workers = workers.concatWith(Flowable.interval(SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS)
+                            .takeUntil(idle)
+                            .filter(tick -> controller.sample())
+                            .map(tick -> this.connection(controller, idle)));
+                }
+                return Flowable.mergeDelayError(workers)
+                        .concatWith(Completable.fromAction(this.record::verify)
+                                .subscribeOn(Schedulers.io())
+                                .<DownloadStatus>toFlowable());
+            });
         }
 
         @Override
@@ -205,6 +230,53 @@ public abstract class DownloadType {
             return CONTINUE_DOWNLOAD_FINISH;
         }
 
+        /**
+         * A range connection counted by the controller, not opened if its host has no connection to spare.
+         *
+         * @param controller controller
+         * @param idle       completed when the last connection exits, which ends the samples
+         * @return Flowable
+         */
+        private Publisher<DownloadStatus> connection(ConnectionController controller, PublishProcessor<Integer> idle) {
+            return Flowable.defer(() -> {
+                if (!controller.tryOpen()) {
+                    return Flowable.<DownloadStatus>empty();
+                }
+                AtomicBoolean yielded = new AtomicBoolean(false);
+                return this.worker(yielded).doFinally(() -> {
+                    if (controller.onExit(yielded.get()) == 0) {
+                        idle.onComplete();
+                    }
+                });
+            });
+        }
+
+        /**
+         * A range connection: downloads segments one after another until none is left to take or split,
+         * or until the controller drops it.
+         *
+         * @param yielded set when the controller dropped the connection
+         * @return Flowable
+         */
+        private Flowable<DownloadStatus> worker(AtomicBoolean yielded) {
+            return Flowable.defer(() -> {
+                int index = this.record.acquireSegment();
+                if (index < 0) {
+                    return Flowable.empty();
+                }
+                return Flowable.fromPublisher(this.rangeDownload(index))
+                        .doOnTerminate(() -> this.record.releaseSegment(index))
+                        .doOnCancel(() -> this.record.releaseSegment(index))
+                        .concatWith(Flowable.defer(() -> {
+                            if (this.record.segmentYielded(index)) {
+                                yielded.set(true);
+                                return Flowable.empty();
+                            }
+                            return this.worker(yielded);
+                        }));
+            });
+        }
+
         /**
          * 分段下载任务
          *
@@ -0,0 +1,91 @@
+package com.download.entity;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Progress of a multi mission, the sum over its downloads.
+ * <p>
+ * Sizes count what the downloads' records know, a download whose size is not known yet counts with the
+ * average size of the others. While no size is known the total is -1 and isChunked is set. The eta is for
+ * the remaining bytes of that total, -1 while there is no throughput or no total to go by.
+ */
+public class MissionStatus extends DownloadStatus {
+
+    public static final Parcelable.Creator<MissionStatus> CREATOR = new Parcelable.Creator<MissionStatus>() {
+        @Override
+        public MissionStatus createFromParcel(Parcel source) {
+            return new MissionStatus(source);
+        }
+
+        @Override
+        public MissionStatus[] newArray(int size) {
+            return new MissionStatus[size];
+        }
+    };
+
+    private int members;
+    private int running;
+    private int completed;
+    private int failed;
+
+    public MissionStatus() {
+
+    }
+
+    protected MissionStatus(Parcel in) {
+        super(in);
+        this.members = in.readInt();
+        this.running = in.readInt();
+        this.completed = in.readInt();
+        this.failed = in.readInt();
+    }
+
+    public int getMembers() {
+        return members;
+    }
+
+    public void setMembers(int members) {
+        this.members = members;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public void setRunning(int running) {
+        this.running = running;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(int completed) {
+        this.completed = completed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+    /**
+     * Downloads that are queued, paused, or not started yet.
+     */
+    public int getWaiting() {
+        return Math.max(0, this.members - this.running - this.completed - this.failed);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeInt(this.members);
+        dest.writeInt(this.running);
+        dest.writeInt(this.completed);
+        dest.writeInt(this.failed);
+    }
+}
@@ -3,16 +3,17 @@ package com.download.entity;
 import com.download.RxDownload;
 import com.download.db.DataBaseHelper;
 import com.download.function.Constant;
+import com.download.function.EventHub;
+import com.download.function.MissionScheduler;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.reactivex.Observer;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.processors.FlowableProcessor;
 
 import static com.download.function.DownloadEventFactory.completed;
 import static com.download.function.DownloadEventFactory.failed;
@@ -20,17 +21,23 @@ import static com.download.function.DownloadEventFactory.normal;
 import static com.download.function.DownloadEventFactory.paused;
 import static com.download.function.DownloadEventFactory.started;
 import static com.download.function.DownloadEventFactory.waiting;
-import static com.download.function.Utils.createProcessor;
 import static com.download.function.Utils.formatStr;
 import static com.download.function.Utils.log;
 
 public class MultiMission extends DownloadMission {
+    private static final long PUBLISH_INTERVAL_NANOS = 500_000_000L;
+
     private AtomicInteger completeNumber;
     private AtomicInteger failedNumber;
     private List<SingleMission> missions;
+    private final List<SingleMissionObserver> observers = new ArrayList<>();
+
+    private final AtomicLong downloadSize = new AtomicLong();
+    private final AtomicLong totalSize = new AtomicLong();
+    private final AtomicInteger sized = new AtomicInteger();  //members whose total size is known
+    private final AtomicLong nextPublish = new AtomicLong(System.nanoTime());
 
     private String missionId;
-    private Observer<DownloadStatus> observer;
 
     public MultiMission(MultiMission other) {
         super(other.rxdownload);
@@ -39,10 +46,8 @@ public class MultiMission extends DownloadMission {
         this.completeNumber = new AtomicInteger(0);
         this.failedNumber = new AtomicInteger(0);
 
-        this.observer = new SingleMissionObserver(this);
-
         for (SingleMission each : other.getMissions()) {
-            this.missions.add(new SingleMission(each, observer));
+            this.missions.add(new SingleMission(each, this.observer()));
         }
     }
 
@@ -53,10 +58,8 @@ public class MultiMission extends DownloadMission {
         this.missions = new ArrayList<>();
         this.completeNumber = new AtomicInteger(0);
         this.failedNumber = new AtomicInteger(0);
-        this.observer = new SingleMissionObserver(this);
-
         for (DownloadBean each : missions) {
-            this.missions.add(new SingleMission(rxDownload, each, missionId, observer));
+            this.missions.add(new SingleMission(rxDownload, each, missionId, this.observer()));
         }
     }
 
@@ -65,7 +68,7 @@ public class MultiMission extends DownloadMission {
     }
 
     @Override
-    public void init(Map<String, DownloadMission> missionMap, Map<String, FlowableProcessor<DownloadEvent>> processorMap) {
+    public void init(Map<String, DownloadMission> missionMap, EventHub hub) {
         DownloadMission mission = missionMap.get(getUrl());
         if (mission == null) {
             missionMap.put(getUrl(), this);
@@ -77,10 +80,10 @@ public class MultiMission extends DownloadMission {
             }
         }
 
-        this.processor = createProcessor(getUrl(), processorMap);
+        this.hub = hub;
 
         for (SingleMission each : missions) {
-            each.init(missionMap, processorMap);
+            each.init(missionMap, hub);
         }
     }
 
@@ -96,13 +99,23 @@ public class MultiMission extends DownloadMission {
         for (SingleMission each : missions) {
             each.sendWaitingEvent(dataBaseHelper);
         }
-        this.processor.onNext(waiting(null));
+        this.emit(waiting(null));
     }
 
     @Override
-    public void start(Semaphore semaphore) throws InterruptedException {
+    public void start(MissionScheduler scheduler, DataBaseHelper dataBaseHelper) {
+        for (int i = 0; i < this.missions.size(); i++) {  //sizes the records know count before their download starts
+            this.observers.get(i).add(dataBaseHelper.readStatus(this.missions.get(i).getUrl()));
+        }
+        for (SingleMission each : this.missions) {  //queued at once, the scheduler takes turns with other missions
+            each.start(scheduler, dataBaseHelper);
+        }
+    }
+
+    @Override
+    public void setPriority(int priority) {
         for (SingleMission each : this.missions) {
-            each.start(semaphore);
+            each.setPriority(priority);
         }
     }
 
@@ -114,7 +127,7 @@ public class MultiMission extends DownloadMission {
         this.setCanceled(true);
         this.completeNumber.set(0);
         this.failedNumber.set(0);
-        this.processor.onNext(paused(null));
+        this.emit(paused(null));
     }
 
     @Override
@@ -125,16 +138,76 @@ public class MultiMission extends DownloadMission {
         this.setCanceled(true);
         this.completeNumber.set(0);
         this.failedNumber.set(0);
-        this.processor.onNext(normal(null));
+        this.emit(normal(null));
     }
 
     private List<SingleMission> getMissions() {
         return missions;
     }
 
+    private SingleMissionObserver observer() {
+        SingleMissionObserver observer = new SingleMissionObserver(this);
+        this.observers.add(observer);
+        return observer;
+    }
+
+    /**
+     * Send the aggregate as a started event, at most once per interval. The download whose update
+     * is due first publishes, the others return at once.
+     */
+    private void publishProgress() {
+        long now = System.nanoTime();
+        long next = this.nextPublish.get();
+        if (now - next < 0 || !this.nextPublish.compareAndSet(next, now + PUBLISH_INTERVAL_NANOS)) {
+            return;
+        }
+        this.emit(started(this.aggregate()));
+    }
+
+    /**
+     * The throughput is the sum of the smoothed rates the running downloads' meters last reported.
+     * Members whose size is not known yet count with the average size of the others, with none
+     * known the total and the eta are unknown.
+     */
+    private MissionStatus aggregate() {
+        MissionStatus status = new MissionStatus();
+        long total = this.totalSize.get();
+        long downloaded = this.downloadSize.get();
+        int sized = this.sized.get();
+        int members = this.missions.size();
+        if (sized == 0) {
+            total = -1;
+        } else if (sized < members) {
+            total += total / sized * (members - sized);
+        }
+        status.isChunked = total < 0;
+        status.setTotalSize(total);
+        status.setDownloadSize(downloaded);
+        int running = 0;
+        long bytesPerSecond = 0;
+        for (SingleMission each : this.missions) {
+            if (each.isRunning()) {
+                running++;
+                DownloadStatus last = each.status;
+                bytesPerSecond += last == null ? 0 : last.getBytesPerSecond();
+            }
+        }
+        status.setMembers(this.missions.size());
+        status.setRunning(running);
+        status.setCompleted(this.completeNumber.get());
+        status.setFailed(this.failedNumber.get());
+        status.setBytesPerSecond(bytesPerSecond);
+        if (bytesPerSecond > 0 && total >= 0 && total >= downloaded) {
+            status.setEtaMillis((total - downloaded) * 1000 / bytesPerSecond);
+        }
+        return status;
+    }
+
     private class SingleMissionObserver implements Observer<DownloadStatus> {
 
         MultiMission real;
+        private long downloadSize;
+        private long totalSize;
 
         public SingleMissionObserver(MultiMission multiMission) {
             this.real = multiMission;
@@ -142,12 +215,33 @@ public class MultiMission extends DownloadMission {
 
         @Override
         public void onSubscribe(Disposable d) {
-            this.real.processor.onNext(started(null));
+            this.real.publishProgress();
         }
 
         @Override
         public void onNext(DownloadStatus value) {
+            this.add(value);
+            this.real.publishProgress();
+        }
+
+        /**
+         * Add what changed since this download's last status to the mission's sums.
+         */
+        synchronized void add(DownloadStatus value) {
+            long size = value.getDownloadSize();
+            this.real.downloadSize.addAndGet(size - this.downloadSize);
+            this.downloadSize = size;
 
+            long total = value.isChunked ? 0 : Math.max(value.getTotalSize(), 0);
+            if (total != this.totalSize) {
+                if (this.totalSize == 0) {
+                    this.real.sized.incrementAndGet();
+                } else if (total == 0) {
+                    this.real.sized.decrementAndGet();
+                }
+                this.real.totalSize.addAndGet(total - this.totalSize);
+                this.totalSize = total;
+            }
         }
 
         @Override
@@ -157,9 +251,11 @@ public class MultiMission extends DownloadMission {
             log("temp: " + temp);
             log("size: " + this.real.missions.size());
             if ((temp + this.real.completeNumber.intValue()) == this.real.missions.size()) {
-                this.real.processor.onNext(failed(null, new Throwable("download failed")));
+                this.real.emit(failed(this.real.aggregate(), new Throwable("download failed")));
                 this.real.setCanceled(true);
                 log("set error cancel");
+            } else {
+                this.real.publishProgress();
             }
         }
 
@@ -167,12 +263,14 @@ public class MultiMission extends DownloadMission {
         public void onComplete() {
             int temp = this.real.completeNumber.incrementAndGet();
             if (temp == this.real.missions.size()) {
-                this.real.processor.onNext(completed(null));
+                this.real.emit(completed(this.real.aggregate()));
                 this.real.setCompleted(true);
                 this.real.setCanceled(true);
             } else if ((temp + this.real.failedNumber.intValue()) == this.real.missions.size()) {
-                this.real.processor.onNext(failed(null, new Throwable("download failed")));
+                this.real.emit(failed(this.real.aggregate(), new Throwable("download failed")));
                 this.real.setCanceled(true);
+            } else {
+                this.real.publishProgress();
             }
         }
     }
@@ -0,0 +1,116 @@
+package com.download.entity;
+
+/**
+ * Filter and page size of a paged record read.
+ * <p>
+ * Pages follow the record id, so a page costs the same however deep into the history it is.
+ */
+public class RecordQuery {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private int[] flags;
+    private String missionId;
+    private long dateFrom;
+    private long dateTo;
+    private int pageSize;
+    private boolean withExtras;
+    private boolean newestFirst;
+
+    private RecordQuery(Builder builder) {
+        this.flags = builder.flags;
+        this.missionId = builder.missionId;
+        this.dateFrom = builder.dateFrom;
+        this.dateTo = builder.dateTo;
+        this.pageSize = builder.pageSize;
+        this.withExtras = builder.withExtras;
+        this.newestFirst = builder.newestFirst;
+    }
+
+    public int[] getFlags() {
+        return flags;
+    }
+
+    public String getMissionId() {
+        return missionId;
+    }
+
+    public long getDateFrom() {
+        return dateFrom;
+    }
+
+    public long getDateTo() {
+        return dateTo;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isWithExtras() {
+        return withExtras;
+    }
+
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    public static class Builder {
+        private int[] flags;
+        private String missionId;
+        private long dateFrom = 0;
+        private long dateTo = Long.MAX_VALUE;
+        private int pageSize = DEFAULT_PAGE_SIZE;
+        private boolean withExtras;
+        private boolean newestFirst;
+
+        public Builder() {
+        }
+
+        /**
+         * Only records with one of these flags, see {@link DownloadFlag}.
+         */
+        public Builder setFlags(int... flags) {
+            this.flags = flags;
+            return this;
+        }
+
+        public Builder setMissionId(String missionId) {
+            this.missionId = missionId;
+            return this;
+        }
+
+        /**
+         * Only records added in [from, to), in milliseconds.
+         */
+        public Builder setDateRange(long from, long to) {
+            this.dateFrom = from;
+            this.dateTo = to;
+            return this;
+        }
+
+        public Builder setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Also load extra1 to extra5. Off by default, they are the bulk of a row.
+         */
+        public Builder setWithExtras(boolean withExtras) {
+            this.withExtras = withExtras;
+            return this;
+        }
+
+        public Builder setNewestFirst(boolean newestFirst) {
+            this.newestFirst = newestFirst;
+            return this;
+        }
+
+        public RecordQuery build() {
+            if (this.pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive");
+            }
+            return new RecordQuery(this);
+        }
+    }
+}
@@ -3,13 +3,15 @@ package com.download.entity;
 import com.download.RxDownload;
 import com.download.db.DataBaseHelper;
 import com.download.function.Constant;
+import com.download.function.DigestMismatchException;
+import com.download.function.EventHub;
+import com.download.function.FairShare;
+import com.download.function.MissionScheduler;
 
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 
 import io.reactivex.Observer;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.processors.FlowableProcessor;
 import io.reactivex.schedulers.Schedulers;
 
 import static com.download.entity.DownloadFlag.WAITING;
@@ -18,21 +20,24 @@ import static com.download.function.DownloadEventFactory.failed;
 import static com.download.function.DownloadEventFactory.normal;
 import static com.download.function.DownloadEventFactory.paused;
 import static com.download.function.DownloadEventFactory.started;
+import static com.download.function.DownloadEventFactory.verifyFailed;
 import static com.download.function.DownloadEventFactory.waiting;
-import static com.download.function.Utils.createProcessor;
 import static com.download.function.Utils.deleteFiles;
 import static com.download.function.Utils.dispose;
 import static com.download.function.Utils.formatStr;
 import static com.download.function.Utils.getFiles;
 import static com.download.function.Utils.log;
 
-public class SingleMission extends DownloadMission {
-    protected DownloadStatus status;
+public class SingleMission extends DownloadMission implements MissionScheduler.Task {
+    protected volatile DownloadStatus status;
     protected Disposable disposable;
     private DownloadBean bean;
 
     private String missionId;
     private Observer<DownloadStatus> observer;
+    private MissionScheduler scheduler;
+    private DataBaseHelper dataBaseHelper;
+    private long grant = -1;  //the grant the download runs under, guarded by this
 
     public SingleMission(RxDownload rxdownload, DownloadBean bean) {
         super(rxdownload);
@@ -43,6 +48,7 @@ public class SingleMission extends DownloadMission {
         super(rxDownload);
         this.bean = bean;
         this.missionId = missionId;
+        bean.setMissionId(missionId);
         this.observer = observer;
     }
 
@@ -59,8 +65,7 @@ public class SingleMission extends DownloadMission {
     }
 
     @Override
-    public void init(Map<String, DownloadMission> missionMap,
-                     Map<String, FlowableProcessor<DownloadEvent>> processorMap) {
+    public void init(Map<String, DownloadMission> missionMap, EventHub hub) {
         DownloadMission mission = missionMap.get(getUrl());
         if (mission == null) {
             missionMap.put(getUrl(), this);
@@ -71,35 +76,56 @@ public class SingleMission extends DownloadMission {
                 throw new IllegalArgumentException(formatStr(Constant.DOWNLOAD_URL_EXISTS, getUrl()));
             }
         }
-        this.processor = createProcessor(this.getUrl(), processorMap);
+        this.hub = hub;
     }
 
     @Override
     public void insertOrUpdate(DataBaseHelper dataBaseHelper) {
-        if (dataBaseHelper.recordNotExists(getUrl())) {
-            dataBaseHelper.insertRecord(bean, WAITING, missionId);
-        } else {
-            dataBaseHelper.updateRecord(getUrl(), WAITING, missionId);
-        }
+        dataBaseHelper.upsertRecord(bean, WAITING, missionId);
     }
 
     @Override
     public void sendWaitingEvent(DataBaseHelper dataBaseHelper) {
-        this.processor.onNext(waiting(dataBaseHelper.readStatus(getUrl())));
+        this.emit(waiting(dataBaseHelper.readStatus(getUrl())));
     }
 
     @Override
-    public void start(final Semaphore semaphore) throws InterruptedException {
+    public void start(MissionScheduler scheduler, DataBaseHelper dataBaseHelper) {
         if (this.isCanceled()) {
             return;
         }
+        this.scheduler = scheduler;
+        this.dataBaseHelper = dataBaseHelper;
+        scheduler.submit(this);
+    }
 
-        semaphore.acquire();
+    @Override
+    public int getPriority() {
+        return this.bean.getPriority();
+    }
 
+    @Override
+    public void setPriority(int priority) {
+        this.bean.setPriority(priority);
+        FairShare.setWeight(this.getUrl(), this.bean.getWeight());
+        if (this.scheduler != null) {
+            this.scheduler.setPriority(this, priority);
+        }
+    }
+
+    /**
+     * Start under the grant, unless it was preempted already, then the next grant starts the download.
+     */
+    @Override
+    public synchronized void onGranted(final long grant) {
+        if (!this.scheduler.isGranted(this, grant)) {
+            return;
+        }
         if (this.isCanceled()) {
-            semaphore.release();
+            this.scheduler.release(this, grant);
             return;
         }
+        this.grant = grant;
 
         this.disposable = this.rxdownload.download(this.bean)
                 .subscribeOn(Schedulers.io())
@@ -110,22 +136,25 @@ public class SingleMission extends DownloadMission {
                 })
                 .doFinally(() -> {
                     log("finally and release...");
-                    this.setCanceled(true);
-                    semaphore.release();
+                    if (!this.isPreempted(grant)) {
+                        this.setCanceled(true);
+                    }
+                    this.scheduler.release(this, grant);
                 })
                 .subscribe(value -> {
                     this.status = value;
-                    this.processor.onNext(started(value));
+                    this.emit(started(value));
                     if (this.observer != null) {
                         this.observer.onNext(value);
                     }
                 }, throwable -> {
-                    this.processor.onNext(failed(this.status, throwable));
+                    this.emit(throwable instanceof DigestMismatchException
+                            ? verifyFailed(this.status, throwable) : failed(this.status, throwable));
                     if (this.observer != null) {
                         this.observer.onError(throwable);
                     }
                 }, () -> {
-                    this.processor.onNext(completed(this.status));
+                    this.emit(completed(this.status));
                     this.setCompleted(true);
 
                     if (this.observer != null) {
@@ -135,19 +164,33 @@ public class SingleMission extends DownloadMission {
     }
 
     @Override
-    public void pause(DataBaseHelper dataBaseHelper) {
+    public synchronized void onPreempted(long grant) {
+        if (grant != this.grant) {
+            return;  //the grant was taken before it started
+        }
+        this.grant = -1;
         dispose(this.disposable);
+        this.dataBaseHelper.updateRecord(getUrl(), WAITING);
+        this.emit(waiting(this.dataBaseHelper.readStatus(getUrl())));
+    }
+
+    @Override
+    public void pause(DataBaseHelper dataBaseHelper) {
         this.setCanceled(true);
-        if (this.processor != null && !isCompleted()) {
-            this.processor.onNext(paused(dataBaseHelper.readStatus(getUrl())));
+        if (this.scheduler != null) {
+            this.scheduler.remove(this);
+        }
+        dispose(this.disposable);
+        if (this.hub != null && !isCompleted()) {
+            this.emit(paused(dataBaseHelper.readStatus(getUrl())));
         }
     }
 
     @Override
     public void delete(DataBaseHelper dataBaseHelper, boolean deleteFile) {
         this.pause(dataBaseHelper);
-        if (this.processor != null) {
-            this.processor.onNext(normal(null));
+        if (this.hub != null) {
+            this.emit(normal(null));
         }
 
         if (deleteFile) {
@@ -160,7 +203,22 @@ public class SingleMission extends DownloadMission {
         dataBaseHelper.deleteRecord(getUrl());
     }
 
-    private String getMissionId() {
+    /**
+     * @return true if the download running under grant was stopped for an urgent one
+     */
+    private synchronized boolean isPreempted(long grant) {
+        return this.grant != grant;
+    }
+
+    /**
+     * @return true while the download is subscribed, it holds a slot
+     */
+    boolean isRunning() {
+        return this.disposable != null && !this.disposable.isDisposed();
+    }
+
+    @Override
+    public String getMissionId() {
         return missionId;
     }
 
@@ -0,0 +1,10 @@
+package com.download.entity;
+
+public class SinkType {
+    public static final int DEFAULT = 0;        //use DownloadHelper's default
+    public static final int AUTO = 1;           //pick by measured hand-over time, see SinkSelector
+    public static final int CHANNEL = 2;        //positional FileChannel write from pooled direct buffers
+    public static final int MAPPED = 3;         //sliding mmap window
+    public static final int RANDOM_ACCESS = 4;  //buffered RandomAccessFile
+    public static final int PIPELINED = 5;      //pooled buffers handed to the shared writer thread
+}
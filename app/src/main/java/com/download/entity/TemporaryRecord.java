@@ -1,8 +1,20 @@
 package com.download.entity;
 
 import com.download.db.DataBaseHelper;
+import com.download.function.BandwidthLimiter;
+import com.download.function.ConnectionController;
+import com.download.function.DigestCursor;
+import com.download.function.DigestMismatchException;
 import com.download.function.DownloadApi;
+import com.download.function.DownloadHelper;
 import com.download.function.FileHelper;
+import com.download.function.HostLimits;
+import com.download.function.ProgressAccumulator;
+import com.download.function.RecordFile;
+import com.download.function.SegmentScheduler;
+import com.download.function.ServerFileChangedException;
+import com.download.function.StreamDigest;
+import com.download.function.ThroughputMeter;
 import com.download.function.Utils;
 
 import org.reactivestreams.Publisher;
@@ -25,10 +37,21 @@ import static com.download.entity.DownloadFlag.FAILED;
 import static com.download.entity.DownloadFlag.PAUSED;
 import static com.download.entity.DownloadFlag.STARTED;
 import static com.download.function.Constant.CACHE;
+import static com.download.function.Constant.NO_VALIDATOR_RESTART_HINT;
+import static com.download.function.Constant.PROBE_DISCARDED_HINT;
+import static com.download.function.Constant.PROBE_REUSED_HINT;
+import static com.download.function.Constant.RANGE_DOWNLOAD_INCOMPLETE;
 import static com.download.function.Constant.RANGE_DOWNLOAD_STARTED;
+import static com.download.function.Utils.closeQuietly;
+import static com.download.function.Utils.deleteFiles;
+import static com.download.function.Utils.eTag;
 import static com.download.function.Utils.empty;
+import static com.download.function.Utils.formatStr;
 import static com.download.function.Utils.getPaths;
+import static com.download.function.Utils.lastModify;
+import static com.download.function.Utils.log;
 import static com.download.function.Utils.mkdirs;
+import static com.download.function.Utils.rangeTotal;
 import static java.io.File.separator;
 
 public class TemporaryRecord {
@@ -40,9 +63,14 @@ public class TemporaryRecord {
 
     private int maxRetryCount;
     private int maxThreads;
+    private boolean adaptiveThreads;
 
     private long contentLength;
     private String lastModify;
+    private String eTag;
+    private StreamDigest digest;
+    private Response<ResponseBody> probe;
+    private UrlMetadata metadata;
 
     private boolean rangeSupport = false;
     private boolean serverFileChanged = false;
@@ -50,26 +78,39 @@ public class TemporaryRecord {
     private DataBaseHelper dataBaseHelper;
     private FileHelper fileHelper;
     private DownloadApi downloadApi;
+    private ProgressAccumulator progress;
+    private SegmentScheduler scheduler;
+    private DigestCursor cursor;
+    private RecordFile recordFile;
+    private BandwidthLimiter.Throttle throttle;
+    private final ThroughputMeter meter = new ThroughputMeter();
 
     public TemporaryRecord(DownloadBean bean) {
         this.bean = bean;
+        this.metadata = new UrlMetadata(bean.getUrl());
     }
 
     /**
      * init needs info
      *
      * @param maxThreads      Max download threads
+     * @param adaptiveThreads Adapt the range connections to the measured bandwidth
      * @param maxRetryCount   Max retry times
      * @param defaultSavePath Default save path;
+     * @param defaultSinkType Default sink type, used when the bean does not choose one
      * @param downloadApi     API
      * @param dataBaseHelper  DataBaseHelper
      */
-    public void init(int maxThreads, int maxRetryCount, String defaultSavePath, DownloadApi downloadApi, DataBaseHelper dataBaseHelper) {
+    public void init(int maxThreads, boolean adaptiveThreads, int maxRetryCount, String defaultSavePath,
+                     int defaultSinkType, DownloadApi downloadApi, DataBaseHelper dataBaseHelper) {
         this.maxThreads = maxThreads;
+        this.adaptiveThreads = adaptiveThreads;
         this.maxRetryCount = maxRetryCount;
         this.downloadApi = downloadApi;
         this.dataBaseHelper = dataBaseHelper;
-        this.fileHelper = new FileHelper(maxThreads);
+        int sinkType = this.bean.getSinkType() == SinkType.DEFAULT ? defaultSinkType : this.bean.getSinkType();
+        this.fileHelper = new FileHelper(maxThreads, sinkType);
+        this.digest = StreamDigest.create(this.bean.getDigestType(), this.bean.getDigest());
 
         String realSavePath;
         if (empty(this.bean.getSavePath())) {
@@ -105,28 +146,35 @@ public class TemporaryRecord {
      * @throws ParseException
      */
     public void prepareRangeDownload() throws IOException, ParseException {
-        this.fileHelper.prepareDownload(lastModifyFile(), tempFile(), file(), contentLength, lastModify);
+        closeQuietly(this.recordFile);
+        this.recordFile = null;
+        this.recordFile = this.fileHelper.prepareDownload(lastModifyFile(), tempFile(), file(),
+                contentLength, lastModify, validator());
     }
 
     /**
-     * Read download range from record file.
+     * Normal download save.
      *
-     * @param index index
-     * @return
-     * @throws IOException
+     * @param e        emitter
+     * @param response response
      */
-    public DownloadRange readDownloadRange(int index) throws IOException {
-        return this.fileHelper.readDownloadRange(tempFile(), index);
+    public void save(FlowableEmitter<DownloadStatus> e, Response<ResponseBody> response) {
+        this.fileHelper.saveFile(e, file(), response, this.digest == null ? null : this.digest.fresh(), this.throttle,
+                this.meter);
     }
 
     /**
-     * Normal download save.
+     * Verify a finished range download against the expected digest, if there is one.
      *
-     * @param e        emitter
-     * @param response response
+     * @throws IOException if a segment is still pending after all range connections exited
      */
-    public void save(FlowableEmitter<DownloadStatus> e, Response<ResponseBody> response) {
-        this.fileHelper.saveFile(e, file(), response);
+    public void verify() throws IOException {
+        if (fileNotComplete()) {
+            throw new IOException(formatStr(RANGE_DOWNLOAD_INCOMPLETE, file().getName()));
+        }
+        if (this.cursor != null) {
+            this.fileHelper.verifyFile(file(), this.cursor);
+        }
     }
 
     /**
@@ -138,16 +186,80 @@ public class TemporaryRecord {
      * @throws IOException
      */
     public void save(FlowableEmitter<DownloadStatus> emitter, int index, ResponseBody response) throws IOException {
-        this.fileHelper.saveFile(emitter, index, tempFile(), file(), response);
+        this.fileHelper.saveFile(emitter, index, this.scheduler, file(), response, this.progress, this.throttle,
+                this.meter, this.cursor);
     }
 
     /**
-     * Normal download request.
+     * Create the scheduler and the progress shared by all range workers, on the record file mapped for this download.
+     *
+     * @param workers max number of range workers
+     * @return controller of the range connections
+     * @throws IOException
+     */
+    public ConnectionController openSegments(int workers) throws IOException {
+        this.scheduler = new SegmentScheduler(recordFile());
+        this.closeCursor();
+        if (this.digest != null) {
+            this.cursor = new DigestCursor(this.digest.fresh(), file(), this.scheduler.totalSize());
+        }
+        this.progress = new ProgressAccumulator(this.scheduler.totalSize(), this.scheduler.downloadedSize(), workers);
+        this.meter.start(this.progress.downloaded());
+        return new ConnectionController(this.scheduler, this.progress, this.meter, workers, this.adaptiveThreads,
+                HostLimits.key(this.bean.getUrl()));
+    }
+
+    /**
+     * Take a segment for an idle range worker.
+     *
+     * @return segment index, -1 if nothing is left
+     * @throws IOException
+     */
+    public int acquireSegment() throws IOException {
+        return this.scheduler.acquire();
+    }
+
+    public void releaseSegment(int index) {
+        this.scheduler.release(index);
+    }
+
+    /**
+     * Whether the worker of this segment was dropped by the {@link ConnectionController}.
+     *
+     * @param index segment index
+     * @return true if the worker should exit
+     */
+    public boolean segmentYielded(int index) {
+        return this.scheduler.yielded(index);
+    }
+
+    /**
+     * Normal download request. If the file already holds some bytes, asks for the rest
+     * with If-Range, so a changed file comes back whole with 200. Without a validator
+     * for If-Range the whole file is asked for.
      *
      * @return response
      */
     public Flowable<Response<ResponseBody>> download() {
-        return this.downloadApi.download(null, this.bean.getUrl());
+        return Flowable.defer(() -> {
+            long offset = file().length();
+            if (offset == 0) {
+                Response<ResponseBody> probe = this.takeProbe();
+                if (probe != null) {
+                    return Flowable.just(probe);
+                }
+            }
+            this.discardProbe();
+            if (offset > 0 && empty(ifRange())) {
+                log(NO_VALIDATOR_RESTART_HINT, this.bean.getUrl());  //a bare Range could append a changed file
+                offset = 0;
+            }
+            if (offset == 0 || offset > this.contentLength && this.contentLength > 0) {
+                return this.downloadApi.download(null, this.bean.getUrl());  //the whole file, rewritten from the start
+            }
+            return this.downloadApi.resume("bytes=" + offset + "-", ifRange(), this.bean.getUrl());
+        }).doOnNext(this::checkValidator)
+                .doOnNext(this::checkUnsatisfiable);
     }
 
     /**
@@ -159,7 +271,7 @@ public class TemporaryRecord {
     public Flowable<Response<ResponseBody>> rangeDownload(final int index) {
         return Flowable
                 .create((FlowableOnSubscribe<DownloadRange>) e -> {
-                    DownloadRange range = readDownloadRange(index);
+                    DownloadRange range = this.scheduler.range(index);
                     if (range.legal()) {
                         e.onNext(range);
                     }
@@ -167,9 +279,16 @@ public class TemporaryRecord {
                 }, BackpressureStrategy.ERROR)
                 .flatMap((Function<DownloadRange, Publisher<Response<ResponseBody>>>) range -> {
                     Utils.log(RANGE_DOWNLOAD_STARTED, index, range.start, range.end);
+                    if (range.start == 0) {
+                        Response<ResponseBody> probe = this.takeProbe();
+                        if (probe != null) {
+                            return Flowable.just(probe);  //runs past range.end, the save stops at the segment's end
+                        }
+                    }
                     String rangeStr = "bytes=" + range.start + "-" + range.end;
                     return this.downloadApi.download(rangeStr, this.bean.getUrl());
-                });
+                })
+                .doOnNext(this::checkValidator);
     }
 
     public int getMaxRetryCount() {
@@ -208,6 +327,52 @@ public class TemporaryRecord {
         this.lastModify = lastModify;
     }
 
+    public UrlMetadata getMetadata() {
+        return this.metadata;
+    }
+
+    public void setMetadata(UrlMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    public String getLastModify() {
+        return this.lastModify;
+    }
+
+    /**
+     * Keep the body of the probe request, the download starts with it instead of a new request.
+     *
+     * @param probe response of "Range: bytes=0-"
+     */
+    public synchronized void setProbe(Response<ResponseBody> probe) {
+        this.discardProbe();
+        this.probe = probe;
+    }
+
+    public synchronized void discardProbe() {
+        if (this.probe != null) {
+            closeQuietly(this.probe.body());
+            this.probe = null;
+            log(PROBE_DISCARDED_HINT);
+        }
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    /**
+     * Take the expected digest from the response, unless the bean already carries one.
+     *
+     * @param digest     Digest header
+     * @param contentMd5 Content-MD5 header
+     */
+    public void setDigestHeaders(String digest, String contentMd5) {
+        if (this.digest == null) {
+            this.digest = StreamDigest.fromHeaders(digest, contentMd5);
+        }
+    }
+
     public String getSaveName() {
         return bean.getSaveName();
     }
@@ -232,8 +397,19 @@ public class TemporaryRecord {
         return file().length() == this.contentLength;
     }
 
+    /**
+     * The record file is damaged if it fails its checks, or was written for another length or version of the file.
+     *
+     * @return true if the record file cannot be trusted
+     * @throws IOException
+     */
     public boolean tempFileDamaged() throws IOException {
-        return this.fileHelper.tempFileDamaged(tempFile(), this.contentLength);
+        RecordFile recordFile = recordFile();
+        if (recordFile.totalLength() != this.contentLength) {
+            return true;
+        }
+        String validator = validator();
+        return !empty(recordFile.validator()) && !empty(validator) && !recordFile.validator().equals(validator);
     }
 
     public String readLastModify() throws IOException {
@@ -241,39 +417,128 @@ public class TemporaryRecord {
     }
 
     public boolean fileNotComplete() throws IOException {
-        return this.fileHelper.fileNotComplete(tempFile());
+        return !recordFile().complete();
     }
 
     public File[] getFiles() {
         return new File[]{file(), tempFile(), lastModifyFile()};
     }
 
-
     public void start() {
-        if (this.dataBaseHelper.recordNotExists(this.bean.getUrl())) {
-            this.dataBaseHelper.insertRecord(this.bean, STARTED);
-        } else {
-            this.dataBaseHelper.updateRecord(this.bean.getUrl(), this.bean.getSaveName(), this.bean.getSavePath(), STARTED);
-        }
+        this.dataBaseHelper.upsertRecord(this.bean, STARTED);
+        this.throttle = BandwidthLimiter.open(this.bean.getUrl(), this.bean.getMissionId(), this.bean.getWeight());
     }
 
     public void update(DownloadStatus status) {
-        this.dataBaseHelper.updateStatus(this.bean.getUrl(), status);
+        this.dataBaseHelper.postStatus(this.bean.getUrl(), status);
     }
 
-    public void error() {
+    public void error(Throwable throwable) {
+        this.dataBaseHelper.flushStatus(this.bean.getUrl());
         this.dataBaseHelper.updateRecord(this.bean.getUrl(), FAILED);
+        if (throwable instanceof DigestMismatchException) {
+            deleteFiles(file(), tempFile());  //otherwise the next start would take the file as downloaded
+        } else if (DownloadHelper.fileChanged(throwable)) {
+            deleteFiles(file(), tempFile(), lastModifyFile());  //the download starts again from byte 0
+        }
     }
 
     public void complete() {
+        this.dataBaseHelper.flushStatus(this.bean.getUrl());
         this.dataBaseHelper.updateRecord(this.bean.getUrl(), COMPLETED);
     }
 
     public void cancel() {
+        this.dataBaseHelper.flushStatus(this.bean.getUrl());
         this.dataBaseHelper.updateRecord(this.bean.getUrl(), PAUSED);
     }
 
     public void finish() {
-//        dataBaseHelper.closeDataBase();
+        this.discardProbe();
+        this.scheduler = null;
+        this.closeCursor();
+        if (this.throttle != null) {
+            BandwidthLimiter.close(this.throttle);
+            this.throttle = null;
+        }
+        closeQuietly(this.recordFile);
+        this.recordFile = null;
+    }
+
+    private void closeCursor() {
+        if (this.cursor != null) {
+            this.cursor.close();
+            this.cursor = null;
+        }
+    }
+
+    /**
+     * A download response whose validators differ from the probed ones means the metadata is stale,
+     * it is dropped from the cache. A part of the changed file must not be mixed into the old one.
+     */
+    private void checkValidator(Response<ResponseBody> response) throws IOException {
+        if (!response.isSuccessful()) {
+            return;
+        }
+        if (!differs(this.eTag, eTag(response)) && !differs(this.lastModify, lastModify(response))) {
+            return;
+        }
+        this.dataBaseHelper.deleteMetadata(this.bean.getUrl());
+        if (response.code() == 206) {
+            closeQuietly(response.body());
+            throw new ServerFileChangedException(this.bean.getUrl());
+        }
+    }
+
+    /**
+     * A 416 to a resume means the file holds every byte already, but only if the server's total is the
+     * file's length and its validators did not change. Otherwise the file changed and is downloaded again.
+     */
+    private void checkUnsatisfiable(Response<ResponseBody> response) throws IOException {
+        if (response.code() != 416) {
+            return;
+        }
+        if (rangeTotal(response) != file().length() || differs(this.eTag, eTag(response))
+                || differs(this.lastModify, lastModify(response))) {
+            closeQuietly(response.errorBody());
+            throw new ServerFileChangedException(this.bean.getUrl());
+        }
+    }
+
+    private static boolean differs(String expected, String actual) {
+        return !empty(expected) && !empty(actual) && !expected.equals(actual);
+    }
+
+    private synchronized Response<ResponseBody> takeProbe() {
+        Response<ResponseBody> probe = this.probe;
+        this.probe = null;
+        if (probe != null) {
+            log(PROBE_REUSED_HINT);
+        }
+        return probe;
+    }
+
+    /**
+     * The record file, opened once and kept mapped until {@link #finish()}.
+     */
+    private RecordFile recordFile() throws IOException {
+        if (this.recordFile == null) {
+            this.recordFile = RecordFile.open(tempFile());
+        }
+        return this.recordFile;
+    }
+
+    /**
+     * A strong ETag if the server sent one, Last-Modified otherwise. Weak ETags are not allowed in If-Range.
+     */
+    private String ifRange() {
+        return empty(this.eTag) || this.eTag.startsWith("W/") ? this.lastModify : this.eTag;
+    }
+
+    /**
+     * ETag if the server sent one, Last-Modified otherwise.
+     */
+    private String validator() {
+        return empty(this.eTag) ? this.lastModify : this.eTag;
     }
 }
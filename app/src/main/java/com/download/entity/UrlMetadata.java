@@ -0,0 +1,95 @@
+package com.download.entity;
+
+/**
+ * What probing a url found out, cached so that the next download of the url can skip the probe.
+ */
+public class UrlMetadata {
+    private String url;
+    private long contentLength;
+    private String lastModify;
+    private String eTag;
+    private boolean rangeSupport;
+    private String fileName;
+    private String digest;
+    private String contentMd5;
+    private long probeTime;
+
+    public UrlMetadata() {
+    }
+
+    public UrlMetadata(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    public String getLastModify() {
+        return lastModify;
+    }
+
+    public void setLastModify(String lastModify) {
+        this.lastModify = lastModify;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public boolean isRangeSupport() {
+        return rangeSupport;
+    }
+
+    public void setRangeSupport(boolean rangeSupport) {
+        this.rangeSupport = rangeSupport;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public String getContentMd5() {
+        return contentMd5;
+    }
+
+    public void setContentMd5(String contentMd5) {
+        this.contentMd5 = contentMd5;
+    }
+
+    public long getProbeTime() {
+        return probeTime;
+    }
+
+    public void setProbeTime(long probeTime) {
+        this.probeTime = probeTime;
+    }
+}
@@ -0,0 +1,213 @@
+package com.download.function;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limits of download speed, one over every download, one per mission and one per url.
+ * <p>
+ * Every read takes its bytes from each bucket that applies and parks the reading thread until the
+ * slowest of them has paid the bytes back, so the thread sleeps instead of spinning. A bucket holds
+ * at most a tenth of a second of its rate, so a connection that was idle can not burst far past it.
+ * 0 means no limit. Limits may change while downloads run, a parked read then stops waiting.
+ * With {@link FairShare} on, a download also reads through its part of the link.
+ */
+public class BandwidthLimiter {
+    private static final long NANOS = 1000_000_000L;
+    private static final long BURST_NANOS = NANOS / 10;
+    private static final long MIN_BURST = 16 * 1024;
+
+    private static final Bucket global = new Bucket();
+    private static final Map<String, Bucket> missions = new HashMap<>();
+    private static final Map<String, Bucket> urls = new HashMap<>();
+    private static volatile int changes;
+
+    private BandwidthLimiter() {
+    }
+
+    /**
+     * @param bytesPerSecond speed of all downloads together, 0 for no limit
+     */
+    public static synchronized void setGlobal(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+        changes++;
+    }
+
+    /**
+     * @param missionId      mission id
+     * @param bytesPerSecond speed of all downloads of the mission together, 0 for no limit
+     */
+    public static synchronized void setMission(String missionId, long bytesPerSecond) {
+        set(missions, missionId, bytesPerSecond);
+    }
+
+    /**
+     * @param url            url
+     * @param bytesPerSecond speed of the url's download over all its connections, 0 for no limit
+     */
+    public static synchronized void setUrl(String url, long bytesPerSecond) {
+        set(urls, url, bytesPerSecond);
+    }
+
+    /**
+     * Buckets of a starting download. Looked up once here, so reads do not touch the maps.
+     * Must be handed back to {@link #close(Throttle)}.
+     *
+     * @param url       url
+     * @param missionId mission id, may be null
+     * @param weight    weight of the download's fair share
+     * @return throttle of the download
+     */
+    public static synchronized Throttle open(String url, String missionId, int weight) {
+        Bucket mission = null;
+        if (missionId != null) {
+            mission = bucket(missions, missionId);
+            mission.users++;
+        }
+        Bucket bucket = bucket(urls, url);
+        bucket.users++;
+        return new Throttle(url, missionId, mission, bucket, FairShare.join(url, weight));
+    }
+
+    public static synchronized void close(Throttle throttle) {
+        FairShare.leave(throttle.share);
+        if (throttle.mission != null) {
+            throttle.mission.users--;
+            removeIfIdle(missions, throttle.missionId, throttle.mission);
+        }
+        throttle.url.users--;
+        removeIfIdle(urls, throttle.urlKey, throttle.url);
+    }
+
+    private static void set(Map<String, Bucket> map, String key, long bytesPerSecond) {
+        Bucket bucket = bucket(map, key);
+        bucket.setRate(bytesPerSecond);
+        removeIfIdle(map, key, bucket);
+        changes++;
+    }
+
+    private static Bucket bucket(Map<String, Bucket> map, String key) {
+        Bucket bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static void removeIfIdle(Map<String, Bucket> map, String key, Bucket bucket) {
+        if (bucket.users <= 0 && bucket.rate <= 0) {
+            map.remove(key);
+        }
+    }
+
+    /**
+     * The buckets one download reads through.
+     */
+    public static final class Throttle {
+        private final String urlKey;
+        private final String missionId;
+        private final Bucket mission;
+        private final Bucket url;
+        private final FairShare.Share share;
+
+        private Throttle(String urlKey, String missionId, Bucket mission, Bucket url, FairShare.Share share) {
+            this.urlKey = urlKey;
+            this.missionId = missionId;
+            this.mission = mission;
+            this.url = url;
+            this.share = share;
+        }
+
+        /**
+         * Account for bytes just read, parks until every bucket has them back.
+         *
+         * @param bytes bytes read
+         * @throws InterruptedIOException the download was cancelled while parked
+         */
+        void acquire(int bytes) throws InterruptedIOException {
+            long wait = global.take(bytes);
+            if (this.mission != null) {
+                wait = Math.max(wait, this.mission.take(bytes));
+            }
+            wait = Math.max(wait, this.url.take(bytes));
+            wait = Math.max(wait, FairShare.take(this.share, bytes));
+            if (wait > 0) {
+                park(wait);
+            }
+        }
+
+        /**
+         * Park in slices, so a limit lifted meanwhile is noticed within one burst window.
+         */
+        private static void park(long nanos) throws InterruptedIOException {
+            int changes = BandwidthLimiter.changes;
+            long deadline = System.nanoTime() + nanos;
+            while (nanos > 0) {
+                LockSupport.parkNanos(Math.min(nanos, BURST_NANOS));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                if (changes != BandwidthLimiter.changes) {
+                    return;
+                }
+                nanos = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    static final class Bucket {
+        volatile long rate;
+        int users;  //guarded by BandwidthLimiter.class
+        private double tokens;
+        private long refilled;
+
+        /**
+         * A new rate starts with a full bucket, the debt taken at the old rate is forgiven.
+         */
+        synchronized void setRate(long rate) {
+            this.rate = Math.max(rate, 0);
+            this.tokens = burst(this.rate);
+            this.refilled = System.nanoTime();
+        }
+
+        /**
+         * Change the rate without refilling, for rates that are adjusted all the time.
+         */
+        synchronized void retune(long rate) {
+            if (this.rate <= 0) {
+                this.setRate(rate);
+                return;
+            }
+            long now = System.nanoTime();
+            this.tokens = Math.min(burst(rate), this.tokens + (double) (now - this.refilled) * this.rate / NANOS);
+            this.refilled = now;
+            this.rate = Math.max(rate, 0);
+        }
+
+        /**
+         * Take bytes, going into debt if there are not enough tokens.
+         *
+         * @return nanos until the debt is paid, 0 if there is none
+         */
+        long take(int bytes) {
+            long rate = this.rate;
+            if (rate <= 0) {
+                return 0;
+            }
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.tokens = Math.min(burst(rate), this.tokens + (double) (now - this.refilled) * rate / NANOS);
+                this.refilled = now;
+                this.tokens -= bytes;
+                return this.tokens >= 0 ? 0 : (long) (-this.tokens * NANOS / rate);
+            }
+        }
+
+        private static double burst(long rate) {
+            return Math.max(MIN_BURST, (double) rate * BURST_NANOS / NANOS);
+        }
+    }
+}
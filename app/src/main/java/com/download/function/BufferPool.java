@@ -0,0 +1,42 @@
+package com.download.function;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers shared by all range writers, so that a download does not
+ * allocate native memory for every segment it writes.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = WritePipeline.RING_SIZE + 16;  //a full ring plus the sinks' current buffers
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+
+    private BufferPool() {
+    }
+
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
@@ -0,0 +1,149 @@
+package com.download.function;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.download.function.Constant.CONNECTION_ADDED;
+import static com.download.function.Constant.CONNECTION_DROPPED;
+import static com.download.function.Utils.log;
+
+/**
+ * Decides how many range connections one download keeps open, AIMD-style.
+ * <p>
+ * The download starts with {@link #INITIAL_CONNECTIONS}. Every sample takes the aggregate throughput
+ * from the download's {@link ThroughputMeter}: while the last added connection raised it by at least {@link #MIN_GAIN}, one more
+ * is added, up to maxConnections, otherwise that connection is dropped again. When the
+ * throughput per connection collapses below {@link #COLLAPSE_RATIO} of the best seen, half of
+ * the connections are dropped.
+ * <p>
+ * Connections beyond the first also need room in the host's {@link HostLimits} budget. Every decision
+ * sets the target number of connections in the {@link ProgressAccumulator}, which the status reports.
+ */
+public class ConnectionController {
+    public static final long SAMPLE_MILLIS = 1000;
+
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final double MIN_GAIN = 0.1;
+    private static final double COLLAPSE_RATIO = 0.4;
+    private static final int HOLD_SAMPLES = 5;  //samples to wait after a decrease before probing again
+
+    private final SegmentScheduler scheduler;
+    private final ProgressAccumulator progress;
+    private final ThroughputMeter meter;
+    private final int maxConnections;
+    private final boolean adaptive;
+    private final String host;
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    private double throughputBeforeAdd = -1;
+    private double bestPerConnection;
+    private boolean probing = true;
+    private int hold;
+
+    public ConnectionController(SegmentScheduler scheduler, ProgressAccumulator progress, ThroughputMeter meter,
+                                int maxConnections, boolean adaptive, String host) {
+        this.scheduler = scheduler;
+        this.progress = progress;
+        this.meter = meter;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.adaptive = adaptive;
+        this.host = host;
+        this.progress.setTargetConnections(this.initial());
+    }
+
+    public int initial() {
+        return this.adaptive ? Math.min(INITIAL_CONNECTIONS, this.maxConnections) : this.maxConnections;
+    }
+
+    /**
+     * @return false if the download keeps its initial connections, then it needs no samples
+     */
+    public boolean adaptive() {
+        return this.adaptive;
+    }
+
+    public int active() {
+        return this.active.get();
+    }
+
+    /**
+     * Open a connection if the host has room for it. The download's only connection always opens.
+     *
+     * @return false if the connection must not start
+     */
+    public synchronized boolean tryOpen() {
+        if (!HostLimits.tryAcquireConnection(this.host, this.active.get() == 0)) {
+            return false;
+        }
+        this.progress.setConnections(this.active.incrementAndGet());
+        this.scheduler.addWorker();
+        return true;
+    }
+
+    /**
+     * @param yielded true if the connection stopped on a yield request
+     * @return connections still open
+     */
+    public int onExit(boolean yielded) {
+        if (!yielded) {
+            this.scheduler.removeWorker();
+        }
+        HostLimits.releaseConnection(this.host);
+        int active = this.active.decrementAndGet();
+        this.progress.setConnections(active);
+        return active;
+    }
+
+    /**
+     * Take a throughput sample.
+     *
+     * @return true if one connection should be added
+     */
+    public synchronized boolean sample() {
+        double throughput = this.meter.instantBytesPerSecond();
+        int connections = this.active.get();
+        if (!this.adaptive || connections == 0) {
+            return false;
+        }
+
+        double perConnection = throughput / connections;
+        this.bestPerConnection = Math.max(this.bestPerConnection, perConnection);
+
+        if (connections > 1 && perConnection < this.bestPerConnection * COLLAPSE_RATIO) {
+            int drop = connections - Math.max(1, connections / 2);
+            this.scheduler.requestYield(drop);
+            this.bestPerConnection = perConnection;
+            this.throughputBeforeAdd = -1;
+            this.probing = false;
+            this.hold = HOLD_SAMPLES;
+            this.progress.setTargetConnections(connections - drop);
+            log(CONNECTION_DROPPED, drop, connections, (long) throughput);
+            return false;
+        }
+
+        if (!this.probing) {
+            if (--this.hold > 0) {
+                return false;
+            }
+            this.probing = true;
+            this.throughputBeforeAdd = -1;
+        }
+
+        if (connections > 1 && this.throughputBeforeAdd >= 0 && throughput < this.throughputBeforeAdd * (1 + MIN_GAIN)) {
+            this.scheduler.requestYield(1);  //plateau, the last connection did not help
+            this.probing = false;
+            this.hold = HOLD_SAMPLES;
+            this.progress.setTargetConnections(connections - 1);
+            log(CONNECTION_DROPPED, 1, connections, (long) throughput);
+            return false;
+        }
+
+        if (connections < this.maxConnections && HostLimits.hasConnectionBudget(this.host)) {
+            this.scheduler.requestYield(0);
+            this.throughputBeforeAdd = throughput;
+            this.progress.setTargetConnections(connections + 1);
+            log(CONNECTION_ADDED, connections + 1, (long) throughput);
+            return true;
+        }
+        return false;
+    }
+}
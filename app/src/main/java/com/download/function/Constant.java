@@ -22,6 +22,12 @@ public class Constant {
     public static final String DOWNLOAD_RECORD_FILE_DAMAGED
             = "Record file may be damaged, so we will re-download";
 
+    public static final String RECORD_FILE_DAMAGED = "Record file [%s] is damaged";
+    public static final String RECORD_FILE_MIGRATED = "Record file [%s] migrated to version 2 with %d ranges";
+
+    public static final String DIGEST_MISMATCH = "File [%s] digest mismatch, expected [%s] but was [%s]";
+    public static final String DIGEST_VERIFIED = "File [%s] digest verified";
+
     //Normal download hint
     public static final String CHUNKED_DOWNLOAD_HINT = "Aha, chunked download!";
     public static final String NORMAL_DOWNLOAD_PREPARE = "Normal download prepare...";
@@ -30,6 +36,9 @@ public class Constant {
     public static final String NORMAL_DOWNLOAD_FAILED = "Normal download failed!";
     public static final String NORMAL_DOWNLOAD_CANCEL = "Normal download cancel!";
     public static final String NORMAL_DOWNLOAD_FINISH = "Normal download finish!";
+    public static final String NORMAL_DOWNLOAD_RESUMED = "Normal download resumed from [%d]";
+    public static final String NORMAL_DOWNLOAD_ALREADY_COMPLETE = "File already holds all %d bytes";
+    public static final String NORMAL_DOWNLOAD_RANGE_MISMATCH = "Server resumed from [%d], but the file holds [%d] bytes";
 
     //Continue download hint
     public static final String CONTINUE_DOWNLOAD_PREPARE = "Continue download prepare...";
@@ -58,6 +67,27 @@ public class Constant {
 
     public static final String RANGE_DOWNLOAD_FAILED = "[%s] download failed or cancel!";
 
+    public static final String CONNECTION_ADDED = "Add connection, now %d, throughput %d B/s";
+    public static final String CONNECTION_DROPPED = "Drop %d of %d connections, throughput %d B/s";
+
+    public static final String RANGE_DOWNLOAD_INCOMPLETE = "File [%s] not complete after all range connections exited";
+    public static final String RANGE_SPLIT_HINT = "Range %d split at [%d], range %d takes over to [%d]";
+
+    //Sink hint
+    public static final String WRITE_PIPELINE_STALL_HINT = "Write pipeline full for %d ms, %d buffers queued";
+    public static final String SINK_THROUGHPUT_HINT = "Sink %d measured write throughput %.2f MB/s";
+
+    public static final String METADATA_CACHE_HIT = "Metadata of [%s] cached, skip probing";
+    public static final String SERVER_FILE_CHANGED = "Server file of [%s] changed during the download";
+    public static final String SERVER_FILE_CHANGED_RESTART_HINT = "Server file of [%s] changed, download it again";
+    public static final String NO_VALIDATOR_RESTART_HINT = "No validator to resume [%s], download from the start";
+    public static final String PROBE_REUSED_HINT = "Reuse the probe response from byte 0";
+    public static final String PROBE_DISCARDED_HINT = "Probe response not needed, closed";
+
+    //Database hint
+    public static final String DB_WRITE_FAILED = "Database write failed: %s";
+    public static final String DB_BATCH_REPLAYED = "Database batch of %d writes failed, replay one by one";
+
     public static final String REQUEST_RETRY_HINT = "Request";
     public static final String NORMAL_RETRY_HINT = "Normal download";
     public static final String RANGE_RETRY_HINT = "Range %d";
@@ -76,6 +106,7 @@ public class Constant {
     public static final String ACQUIRE_SURPLUS_SEMAPHORE = "After acquired, surplus %d semaphore";
     public static final String RELEASE_SURPLUS_SEMAPHORE = "After release, surplus %d semaphore";
 
-    public static final String WAITING_FOR_MISSION_COME = "DownloadQueue waiting for mission come...";
-    public static final String MISSION_COMING = "Mission coming!";
+    public static final String MISSION_PREEMPTED = "Mission [%s] paused for urgent mission [%s]";
+    public static final String FAIR_SHARE_REBALANCED = "Fair share: %d downloads, last measured %d B/s";
+    public static final String EVENT_CHANNEL_EVICTED = "Event channel [%s] evicted";
 }
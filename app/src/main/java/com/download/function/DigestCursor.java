@@ -0,0 +1,113 @@
+package com.download.function;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.download.function.Utils.closeQuietly;
+
+/**
+ * Digest of a range download, computed while its ranges are still arriving.
+ * <p>
+ * Ranges finish out of order but the digest needs the bytes in order. After a commit, the worker
+ * hashes the file from the cursor up to the end of its complete prefix, which it has just written
+ * and which is still in the page cache. One worker hashes at a time, the others keep downloading.
+ * {@link #finish()} hashes what is left after the last range, the whole file is read again only if
+ * the cursor failed to read it.
+ */
+public class DigestCursor {
+    private static final long MIN_STEP = 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final StreamDigest digest;
+    private final File file;
+    private final long totalSize;
+    private RandomAccessFile input;
+    private byte[] buffer;
+    private long hashed;
+    private boolean failed;
+
+    public DigestCursor(StreamDigest digest, File file, long totalSize) {
+        this.digest = digest;
+        this.file = file;
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * Hash the complete prefix of the file, if it grew by at least {@link #MIN_STEP} or reached the end.
+     * Returns at once if another worker is hashing.
+     *
+     * @param scheduler scheduler of the download
+     */
+    public void advance(SegmentScheduler scheduler) {
+        if (!this.lock.tryLock()) {
+            return;
+        }
+        try {
+            long prefix = scheduler.contiguous();
+            if (!this.failed && (prefix - this.hashed >= MIN_STEP || prefix == this.totalSize)) {
+                this.hash(prefix);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Hash the rest of the file, once all ranges are done.
+     *
+     * @return digest of the whole file, or null if the cursor could not read it
+     */
+    public StreamDigest finish() {
+        this.lock.lock();
+        try {
+            if (!this.failed) {
+                this.hash(this.totalSize);
+            }
+            this.close();
+            return this.failed ? null : this.digest;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * A new digest with the same algorithm and expected value, for a full pass over the file.
+     */
+    public StreamDigest fresh() {
+        return this.digest.fresh();
+    }
+
+    public void close() {
+        this.lock.lock();
+        try {
+            closeQuietly(this.input);
+            this.input = null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void hash(long end) {
+        try {
+            if (this.input == null) {
+                this.input = new RandomAccessFile(this.file, "r");
+                this.buffer = new byte[BufferPool.BUFFER_SIZE];
+            }
+            this.input.seek(this.hashed);
+            while (this.hashed < end) {
+                int readLen = this.input.read(this.buffer, 0, (int) Math.min(this.buffer.length, end - this.hashed));
+                if (readLen == -1) {
+                    throw new IOException("Unexpected end of file at " + this.hashed);
+                }
+                this.digest.update(this.buffer, 0, readLen);
+                this.hashed += readLen;
+            }
+        } catch (IOException e) {
+            this.failed = true;  //finish() falls back to a full pass
+            closeQuietly(this.input);
+            this.input = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.download.function;
+
+import java.io.IOException;
+
+import static com.download.function.Constant.DIGEST_MISMATCH;
+import static com.download.function.Utils.formatStr;
+
+/**
+ * The downloaded file does not match its expected digest. Not retried, the download fails
+ * with {@link com.download.entity.DownloadFlag#VERIFY_FAILED}.
+ */
+public class DigestMismatchException extends IOException {
+    private final String expected;
+    private final String actual;
+
+    public DigestMismatchException(String name, String expected, String actual) {
+        super(formatStr(DIGEST_MISMATCH, name, expected, actual));
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getExpected() {
+        return this.expected;
+    }
+
+    public String getActual() {
+        return this.actual;
+    }
+}
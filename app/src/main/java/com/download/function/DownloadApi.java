@@ -15,6 +15,15 @@ public interface DownloadApi {
     @Streaming
     Flowable<Response<ResponseBody>> download(@Header("Range") String range, @Url String url);
 
+    @GET
+    @Streaming
+    Flowable<Response<ResponseBody>> resume(@Header("Range") String range, @Header("If-Range") String ifRange,
+                                            @Url String url);
+
+    @GET
+    @Streaming
+    Observable<Response<ResponseBody>> probe(@Header("Range") String range, @Url String url);
+
     @HEAD
     Observable<Response<Void>> check(@Url String url);
 
@@ -8,6 +8,7 @@ import static com.download.entity.DownloadFlag.FAILED;
 import static com.download.entity.DownloadFlag.NORMAL;
 import static com.download.entity.DownloadFlag.PAUSED;
 import static com.download.entity.DownloadFlag.STARTED;
+import static com.download.entity.DownloadFlag.VERIFY_FAILED;
 import static com.download.entity.DownloadFlag.WAITING;
 
 public class DownloadEventFactory {
@@ -35,6 +36,10 @@ public class DownloadEventFactory {
         return createEvent(FAILED, status, throwable);
     }
 
+    public static DownloadEvent verifyFailed(DownloadStatus status, Throwable throwable) {
+        return createEvent(VERIFY_FAILED, status, throwable);
+    }
+
     private static DownloadEvent createEvent(int flag, DownloadStatus status, Throwable throwable) {
         DownloadEvent event = createEvent(flag, status);
         event.setError(throwable);
@@ -9,13 +9,17 @@ import com.download.entity.DownloadBean;
 import com.download.entity.DownloadRecord;
 import com.download.entity.DownloadStatus;
 import com.download.entity.DownloadType;
+import com.download.entity.RecordQuery;
+import com.download.entity.SinkType;
 import com.download.entity.TemporaryRecord;
+import com.download.entity.UrlMetadata;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.List;
 
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
 import io.reactivex.exceptions.CompositeException;
@@ -25,9 +29,12 @@ import retrofit2.Retrofit;
 
 import static android.os.Environment.DIRECTORY_DOWNLOADS;
 import static com.download.function.Constant.DOWNLOAD_URL_EXISTS;
+import static com.download.function.Constant.METADATA_CACHE_HIT;
 import static com.download.function.Constant.REQUEST_RETRY_HINT;
+import static com.download.function.Constant.SERVER_FILE_CHANGED_RESTART_HINT;
 import static com.download.function.Constant.TEST_RANGE_SUPPORT;
 import static com.download.function.Constant.URL_ILLEGAL;
+import static com.download.function.Utils.closeQuietly;
 import static com.download.function.Utils.formatStr;
 import static com.download.function.Utils.log;
 import static com.download.function.Utils.retry;
@@ -35,6 +42,9 @@ import static com.download.function.Utils.retry;
 public class DownloadHelper {
     private int maxRetryCount = 3;
     private int maxThreads = 3;
+    private boolean adaptiveThreads = true;
+    private int sinkType = SinkType.CHANNEL;
+    private boolean fastProbe = false;
 
     private String defaultSavePath;
     private DownloadApi downloadApi;
@@ -65,6 +75,55 @@ public class DownloadHelper {
         this.maxThreads = maxThreads;
     }
 
+    /**
+     * Whether range downloads adapt their connection count to the measured bandwidth,
+     * between one and maxThreads. If not, every range download uses maxThreads connections.
+     *
+     * @param adaptiveThreads adaptive
+     */
+    public void setAdaptiveThreads(boolean adaptiveThreads) {
+        this.adaptiveThreads = adaptiveThreads;
+    }
+
+    /**
+     * Set when download progress is written to the database.
+     *
+     * @param intervalMillis flush interval
+     * @param byteDelta      flush a download once it has moved this many bytes
+     */
+    public void setProgressFlushPolicy(long intervalMillis, long byteDelta) {
+        this.dataBaseHelper.setProgressFlushPolicy(intervalMillis, byteDelta);
+    }
+
+    /**
+     * Default sink for downloads whose bean does not choose one.
+     *
+     * @param sinkType {@link SinkType}
+     */
+    public void setSinkType(int sinkType) {
+        this.sinkType = sinkType;
+    }
+
+    /**
+     * Whether the download type is decided from one ranged GET instead of up to three HEAD requests.
+     * The body of that GET becomes the start of the download.
+     *
+     * @param fastProbe fast probe
+     */
+    public void setFastProbe(boolean fastProbe) {
+        this.fastProbe = fastProbe;
+    }
+
+    /**
+     * Set how long probed url metadata is reused instead of probing again, and how many urls are kept.
+     *
+     * @param ttlMillis  time to live, 0 turns the cache off
+     * @param maxEntries size bound
+     */
+    public void setMetadataCachePolicy(long ttlMillis, int maxEntries) {
+        this.dataBaseHelper.setMetadataPolicy(ttlMillis, maxEntries);
+    }
+
     /**
      * return Files
      *
@@ -90,12 +149,40 @@ public class DownloadHelper {
     public Observable<DownloadStatus> downloadDispatcher(final DownloadBean bean) {
         return Observable.just(1)
                 .doOnSubscribe(disposable -> addTempRecord(bean))
-                .flatMap((Function<Integer, ObservableSource<DownloadType>>) integer -> getDownloadType(bean.getUrl()))
-                .flatMap((Function<DownloadType, ObservableSource<DownloadStatus>>) this::download)
+                .flatMap((Function<Integer, ObservableSource<DownloadStatus>>) integer -> getDownloadType(bean.getUrl())
+                        .flatMap((Function<DownloadType, ObservableSource<DownloadStatus>>) this::download)
+                        .retry((count, throwable) -> count <= 1 && this.restartChanged(bean.getUrl(), throwable)))
                 .doOnError(this::logError)
                 .doFinally(() -> this.recordTable.delete(bean.getUrl()));
     }
 
+    /**
+     * Whether the failure is a part of a changed server file. Its files are deleted by then, so the download
+     * probes again and starts from the beginning.
+     *
+     * @param throwable failure of a download, may be a {@link CompositeException} of its range workers
+     * @return true if the server file changed
+     */
+    public static boolean fileChanged(Throwable throwable) {
+        if (throwable instanceof CompositeException) {
+            for (Throwable each : ((CompositeException) throwable).getExceptions()) {
+                if (each instanceof ServerFileChangedException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return throwable instanceof ServerFileChangedException;
+    }
+
+    private boolean restartChanged(String url, Throwable throwable) {
+        if (!fileChanged(throwable)) {
+            return false;
+        }
+        log(SERVER_FILE_CHANGED_RESTART_HINT, url);
+        return true;
+    }
+
     private ObservableSource<DownloadStatus> download(DownloadType downloadType) throws IOException, ParseException {
         downloadType.prepareDownload();
         return downloadType.startDownload();
@@ -132,12 +219,76 @@ public class DownloadHelper {
      * @return download type
      */
     private Observable<DownloadType> getDownloadType(final String url) {
+        return Observable.defer(() -> {
+            UrlMetadata cached = this.dataBaseHelper.readMetadata(url);
+            if (cached != null) {
+                return this.cachedDownloadType(url, cached);
+            }
+            if (this.fastProbe) {
+                return this.probeDownloadType(url);
+            }
+            return Observable.just(1)
+                    .flatMap((Function<Integer, ObservableSource<Object>>) integer -> checkUrl(url))
+                    .flatMap((Function<Object, ObservableSource<Object>>) o -> checkRange(url))
+                    .doOnNext(o -> this.dataBaseHelper.saveMetadata(this.recordTable.getMetadata(url)))
+                    .doOnNext(o -> this.recordTable.init(url, this.maxThreads, this.adaptiveThreads, this.maxRetryCount, this.defaultSavePath,
+                            this.sinkType, this.downloadApi, this.dataBaseHelper))
+                    .flatMap((Function<Object, ObservableSource<DownloadType>>) o -> this.recordTable.fileExists(url) ? existsType(url) : nonExistsType(url));
+        });
+    }
+
+    /**
+     * get download type from cached metadata, without any request.
+     * The download responses are still checked against the cached validators.
+     *
+     * @param url      url
+     * @param metadata cached metadata
+     * @return download type
+     */
+    private Observable<DownloadType> cachedDownloadType(final String url, final UrlMetadata metadata) {
         return Observable.just(1)
-                .flatMap((Function<Integer, ObservableSource<Object>>) integer -> checkUrl(url))
-                .flatMap((Function<Object, ObservableSource<Object>>) o -> checkRange(url))
-                .doOnNext(o -> this.recordTable.init(url, this.maxThreads, this.maxRetryCount, this.defaultSavePath,
-                        this.downloadApi, this.dataBaseHelper))
-                .flatMap((Function<Object, ObservableSource<DownloadType>>) o -> this.recordTable.fileExists(url) ? existsType(url) : nonExistsType(url));
+                .doOnNext(integer -> {
+                    log(METADATA_CACHE_HIT, url);
+                    this.recordTable.saveCachedInfo(url, metadata);
+                    this.recordTable.init(url, this.maxThreads, this.adaptiveThreads, this.maxRetryCount,
+                            this.defaultSavePath, this.sinkType, this.downloadApi, this.dataBaseHelper);
+                })
+                .map(integer -> {
+                    if (!this.recordTable.fileExists(url)) {
+                        return this.recordTable.generateNonExistsType(url);
+                    }
+                    this.recordTable.saveFileState(url);
+                    return this.recordTable.generateFileExistsType(url);
+                });
+    }
+
+    /**
+     * get download type from a single "Range: bytes=0-" GET, whose response is kept for the download.
+     *
+     * @param url url
+     * @return download type
+     */
+    private Observable<DownloadType> probeDownloadType(final String url) {
+        return this.downloadApi.probe(TEST_RANGE_SUPPORT, url)
+                .doOnNext(response -> DownloadMetrics.probe(url, response.raw()))
+                .doOnNext(response -> {
+                    if (!response.isSuccessful()) {
+                        closeQuietly(response.body());
+                        throw new IllegalArgumentException(formatStr(URL_ILLEGAL, url));
+                    }
+                    this.recordTable.saveProbeInfo(url, response);
+                })
+                .compose(retry(REQUEST_RETRY_HINT, maxRetryCount))
+                .doOnNext(response -> this.dataBaseHelper.saveMetadata(this.recordTable.getMetadata(url)))
+                .doOnNext(response -> this.recordTable.init(url, this.maxThreads, this.adaptiveThreads, this.maxRetryCount,
+                        this.defaultSavePath, this.sinkType, this.downloadApi, this.dataBaseHelper))
+                .map(response -> {
+                    if (!this.recordTable.fileExists(url)) {
+                        return this.recordTable.generateNonExistsType(url);
+                    }
+                    this.recordTable.saveFileState(url);
+                    return this.recordTable.generateFileExistsType(url);
+                });
     }
 
     /**
@@ -172,6 +323,7 @@ public class DownloadHelper {
      */
     private ObservableSource<Object> checkUrl(final String url) {
         return this.downloadApi.check(url)
+                .doOnNext(resp -> DownloadMetrics.probe(url, resp.raw()))
                 .flatMap((Function<Response<Void>, ObservableSource<Object>>) resp -> {
                     if (!resp.isSuccessful()) {
                         return checkUrlByGet(url);
@@ -192,6 +344,7 @@ public class DownloadHelper {
 
     private ObservableSource<Object> checkUrlByGet(final String url) {
         return downloadApi.checkByGet(url)
+                .doOnNext(response -> DownloadMetrics.probe(url, response.raw()))
                 .doOnNext(response -> {
                     if (!response.isSuccessful()) {
                         throw new IllegalArgumentException(formatStr(URL_ILLEGAL, url));
@@ -211,6 +364,7 @@ public class DownloadHelper {
      */
     private ObservableSource<Object> checkRange(final String url) {
         return downloadApi.checkRangeByHead(TEST_RANGE_SUPPORT, url)
+                .doOnNext(response -> DownloadMetrics.probe(url, response.raw()))
                 .doOnNext(response -> recordTable.saveRangeInfo(url, response))
                 .map(response -> new Object())
                 .compose(retry(REQUEST_RETRY_HINT, maxRetryCount));
@@ -224,6 +378,7 @@ public class DownloadHelper {
      */
     private ObservableSource<Object> checkFile(final String url, String lastModify) {
         return this.downloadApi.checkFileByHead(lastModify, url)
+                .doOnNext(response -> DownloadMetrics.probe(url, response.raw()))
                 .doOnNext(response -> this.recordTable.saveFileState(url, response))
                 .map(response -> new Object())
                 .compose(retry(REQUEST_RETRY_HINT, maxRetryCount));
@@ -233,6 +388,10 @@ public class DownloadHelper {
         return this.dataBaseHelper.readAllRecords();
     }
 
+    public Flowable<List<DownloadRecord>> readRecords(RecordQuery query) {
+        return this.dataBaseHelper.readRecords(query);
+    }
+
     public Observable<DownloadRecord> readRecord(String url) {
         return this.dataBaseHelper.readRecord(url);
     }
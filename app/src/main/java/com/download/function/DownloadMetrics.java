@@ -0,0 +1,383 @@
+package com.download.function;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Timings and counters of the download engine, for telemetry.
+ * <p>
+ * Every metric is a histogram with power of two buckets, so recording is a few atomic adds and a
+ * snapshot can tell percentiles within a factor of two. Times are in micros, range sizes in bytes.
+ * Network timings, probe round-trips and queue waits are also kept per url, as count, sum and max,
+ * for the last {@link #MAX_DOWNLOADS} urls. Disk and database writes do not know their url and are
+ * kept in aggregate only: a disk write is one write call on the channel or file of a range sink or of the
+ * write pipeline, copies into a sink's buffer or mapping are not counted. A database write is one
+ * transaction, with the writes it held counted in {@link #DB_WRITES}. Retries are counted by exception type.
+ */
+public class DownloadMetrics {
+    public static final int DNS = 0;
+    public static final int CONNECT = 1;
+    public static final int TLS = 2;
+    public static final int TTFB = 3;
+    public static final int PROBE = 4;
+    public static final int RANGE_BYTES = 5;
+    public static final int DISK_WRITE = 6;
+    public static final int DB_WRITE = 7;
+    public static final int QUEUE_WAIT = 8;
+
+    public static final String DB_WRITES = "db.writes";
+
+    private static final String[] NAMES = {"dns", "connect", "tls", "ttfb", "probe", "range_bytes", "disk_write",
+            "db_write", "queue_wait"};
+    private static final int MAX_DOWNLOADS = 100;
+
+    private static final Histogram[] histograms = new Histogram[NAMES.length];
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Timings> downloads = new LinkedHashMap<String, Timings>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Timings> eldest) {
+            return this.size() > MAX_DOWNLOADS;
+        }
+    };
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    private DownloadMetrics() {
+    }
+
+    /**
+     * @param metric one of the metric constants
+     * @param value  micros, or bytes for {@link #RANGE_BYTES}
+     */
+    public static void record(int metric, long value) {
+        histograms[metric].record(value);
+    }
+
+    /**
+     * Record for the url too.
+     *
+     * @param metric one of the metric constants
+     * @param url    url of the download
+     * @param value  micros, or bytes for {@link #RANGE_BYTES}
+     */
+    public static void record(int metric, String url, long value) {
+        histograms[metric].record(value);
+        timings(url).record(metric, value);
+    }
+
+    public static void recordNanos(int metric, long nanos) {
+        record(metric, nanos / 1000);
+    }
+
+    public static void count(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(counter, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    /**
+     * Count a retry.
+     *
+     * @param type simple name of the exception that is retried
+     */
+    static void retry(String type) {
+        count("retry." + type, 1);
+    }
+
+    /**
+     * Round-trip of a probe request, from the request sent to the response headers.
+     *
+     * @param url      url
+     * @param response raw response
+     */
+    static void probe(String url, okhttp3.Response response) {
+        record(PROBE, url, (response.receivedResponseAtMillis() - response.sentRequestAtMillis()) * 1000);
+    }
+
+    /**
+     * Factory of the listener that times DNS, connect, TLS and the first byte of every call.
+     *
+     * @return factory
+     */
+    static EventListener.Factory listenerFactory() {
+        return call -> new CallTimer(call.request().url().toString());
+    }
+
+    public static Snapshot snapshot() {
+        Map<String, Histogram.Snapshot> aggregate = new LinkedHashMap<>();
+        for (int i = 0; i < NAMES.length; i++) {
+            aggregate.put(NAMES[i], histograms[i].snapshot());
+        }
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> each : counters.entrySet()) {
+            counts.put(each.getKey(), each.getValue().get());
+        }
+        Map<String, Map<String, Summary>> perUrl = new LinkedHashMap<>();
+        synchronized (downloads) {
+            for (Map.Entry<String, Timings> each : downloads.entrySet()) {
+                perUrl.put(each.getKey(), each.getValue().summaries());
+            }
+        }
+        return new Snapshot(aggregate, counts, perUrl);
+    }
+
+    /**
+     * Start over, for telemetry that reports per interval.
+     */
+    public static void reset() {
+        for (Histogram each : histograms) {
+            each.reset();
+        }
+        counters.clear();
+        synchronized (downloads) {
+            downloads.clear();
+        }
+    }
+
+    private static Timings timings(String url) {
+        synchronized (downloads) {
+            Timings timings = downloads.get(url);
+            if (timings == null) {
+                timings = new Timings();
+                downloads.put(url, timings);
+            }
+            return timings;
+        }
+    }
+
+    /**
+     * Bucket i counts values from 2^(i-1) up to 2^i, bucket 0 counts 0.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            this.count.incrementAndGet();
+            this.sum.addAndGet(value);
+            long max = this.max.get();
+            while (value > max && !this.max.compareAndSet(max, value)) {
+                max = this.max.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets.set(i, 0);
+            }
+            this.count.set(0);
+            this.sum.set(0);
+            this.max.set(0);
+        }
+
+        Snapshot snapshot() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = this.buckets.get(i);
+            }
+            return new Snapshot(this.count.get(), this.sum.get(), this.max.get(), buckets);
+        }
+
+        /**
+         * A histogram at one moment. Taken while values arrive, count and buckets may differ by a few.
+         */
+        public static class Snapshot {
+            public final long count;
+            public final long sum;
+            public final long max;
+            private final long[] buckets;
+
+            Snapshot(long count, long sum, long max, long[] buckets) {
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+                this.buckets = buckets;
+            }
+
+            public long mean() {
+                return this.count == 0 ? 0 : this.sum / this.count;
+            }
+
+            /**
+             * Upper bound of the bucket holding the percentile, at most twice the exact value.
+             *
+             * @param percentile 0 to 100
+             * @return value
+             */
+            public long percentile(double percentile) {
+                long total = 0;
+                for (long each : this.buckets) {
+                    total += each;
+                }
+                long rank = (long) Math.ceil(total * percentile / 100);
+                long seen = 0;
+                for (int i = 0; i < this.buckets.length; i++) {
+                    seen += this.buckets[i];
+                    if (seen >= rank && seen > 0) {
+                        return i == 0 ? 0 : Math.min(this.max, (1L << i) - 1);
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Count, sum and max of each metric of one url.
+     */
+    private static final class Timings {
+        private final AtomicLongArray values = new AtomicLongArray(NAMES.length * 3);
+
+        void record(int metric, long value) {
+            int base = metric * 3;
+            this.values.incrementAndGet(base);
+            this.values.addAndGet(base + 1, value);
+            long max = this.values.get(base + 2);
+            while (value > max && !this.values.compareAndSet(base + 2, max, value)) {
+                max = this.values.get(base + 2);
+            }
+        }
+
+        Map<String, Summary> summaries() {
+            Map<String, Summary> result = new LinkedHashMap<>();
+            for (int i = 0; i < NAMES.length; i++) {
+                long count = this.values.get(i * 3);
+                if (count > 0) {
+                    result.put(NAMES[i], new Summary(count, this.values.get(i * 3 + 1), this.values.get(i * 3 + 2)));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Times the phases of one call. Only the call's own thread reports to it.
+     */
+    private static final class CallTimer extends EventListener {
+        private final String url;
+        private long dnsStart;
+        private long connectStart;
+        private long secureStart;
+        private long requestSent;
+
+        CallTimer(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            this.dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            record(DNS, this.url, (System.nanoTime() - this.dnsStart) / 1000);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            this.connectStart = System.nanoTime();
+            this.secureStart = 0;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            this.secureStart = System.nanoTime();
+            record(CONNECT, this.url, (this.secureStart - this.connectStart) / 1000);
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            record(TLS, this.url, (System.nanoTime() - this.secureStart) / 1000);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            if (this.secureStart == 0) {
+                record(CONNECT, this.url, (System.nanoTime() - this.connectStart) / 1000);
+            }
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol,
+                                  IOException ioe) {
+            count("connect.failed", 1);
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            this.requestSent = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (this.requestSent > 0) {
+                record(TTFB, this.url, (System.nanoTime() - this.requestSent) / 1000);
+            }
+        }
+    }
+
+    public static class Summary {
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Summary(long count, long sum, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long mean() {
+            return this.sum / this.count;
+        }
+    }
+
+    /**
+     * Metrics at one moment: histograms by metric name, counters by name, and per url summaries by metric name.
+     */
+    public static class Snapshot {
+        public final Map<String, Histogram.Snapshot> histograms;
+        public final Map<String, Long> counters;
+        public final Map<String, Map<String, Summary>> downloads;
+
+        Snapshot(Map<String, Histogram.Snapshot> histograms, Map<String, Long> counters,
+                 Map<String, Map<String, Summary>> downloads) {
+            this.histograms = Collections.unmodifiableMap(histograms);
+            this.counters = Collections.unmodifiableMap(counters);
+            this.downloads = Collections.unmodifiableMap(downloads);
+        }
+    }
+}
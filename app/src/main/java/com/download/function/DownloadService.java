@@ -17,47 +17,38 @@ import com.download.entity.MultiMission;
 import com.download.entity.SingleMission;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 
-import io.reactivex.Observable;
-import io.reactivex.ObservableOnSubscribe;
-import io.reactivex.disposables.Disposable;
-import io.reactivex.processors.FlowableProcessor;
-import io.reactivex.schedulers.Schedulers;
+import io.reactivex.Flowable;
 
-import static com.download.function.Constant.WAITING_FOR_MISSION_COME;
 import static com.download.function.DownloadEventFactory.createEvent;
 import static com.download.function.DownloadEventFactory.normal;
-import static com.download.function.Utils.createProcessor;
 import static com.download.function.Utils.deleteFiles;
-import static com.download.function.Utils.dispose;
 import static com.download.function.Utils.getFiles;
 import static com.download.function.Utils.log;
 
 public class DownloadService extends Service {
     public static final String INTENT_KEY = "zlc_season_rxdownload_max_download_number";
+    public static final String INTENT_KEY_MISSION_SLOTS = "zlc_season_rxdownload_max_mission_slots";
 
     private DownloadBinder mBinder;
 
-    private Semaphore semaphore;
-    private BlockingQueue<DownloadMission> downloadQueue;
+    private MissionScheduler scheduler;
     private Map<String, DownloadMission> missionMap;
-    private Map<String, FlowableProcessor<DownloadEvent>> processorMap;
+    private EventHub eventHub;
 
-    private Disposable disposable;
     private DataBaseHelper dataBaseHelper;
 
     @Override
     public void onCreate() {
         super.onCreate();
         this.mBinder = new DownloadBinder();
-        this.downloadQueue = new LinkedBlockingQueue<>();
-        this.processorMap = new ConcurrentHashMap<>();
+        this.scheduler = new MissionScheduler(5);
+        this.eventHub = new EventHub();
         this.missionMap = new ConcurrentHashMap<>();
         this.dataBaseHelper = DataBaseHelper.getSingleton(getApplicationContext());
     }
@@ -68,7 +59,8 @@ public class DownloadService extends Service {
         this.dataBaseHelper.repairErrorFlag();
         if (intent != null) {
             int maxDownloadNumber = intent.getIntExtra(INTENT_KEY, 5);
-            this.semaphore = new Semaphore(maxDownloadNumber);
+            this.scheduler.setMaxSlots(maxDownloadNumber);
+            this.scheduler.setMaxSlotsPerMission(intent.getIntExtra(INTENT_KEY_MISSION_SLOTS, 0));
         }
         return super.onStartCommand(intent, flags, startId);
     }
@@ -78,6 +70,7 @@ public class DownloadService extends Service {
         super.onDestroy();
         log("destroy Download Service");
         this.destroy();
+        this.dataBaseHelper.flushAllStatus();
         this.dataBaseHelper.closeDataBase();
     }
 
@@ -85,7 +78,6 @@ public class DownloadService extends Service {
     @Override
     public IBinder onBind(Intent intent) {
         log("bind Download Service");
-        this.startDispatch();
         return this.mBinder;
     }
 
@@ -95,43 +87,101 @@ public class DownloadService extends Service {
      * Will receive the following event:
      * {@link DownloadFlag#NORMAL}、{@link DownloadFlag#WAITING}、
      * {@link DownloadFlag#STARTED}、{@link DownloadFlag#PAUSED}、
-     * {@link DownloadFlag#COMPLETED}、{@link DownloadFlag#FAILED};
+     * {@link DownloadFlag#COMPLETED}、{@link DownloadFlag#FAILED}、
+     * {@link DownloadFlag#VERIFY_FAILED};
      * <p>
      * Every event has {@link DownloadStatus}, you can get it and display it on the interface.
+     * The first event is the current state.
      *
-     * @param url url
+     * @param url url or missionId
      * @return DownloadEvent
      */
-    public FlowableProcessor<DownloadEvent> receiveDownloadEvent(String url) {
-        FlowableProcessor<DownloadEvent> processor = createProcessor(url, this.processorMap);
-        DownloadMission mission = this.missionMap.get(url);
-        if (mission == null) {  //Not yet add this url mission.
-            DownloadRecord record = this.dataBaseHelper.readSingleRecord(url);
-            if (record == null) {
-                processor.onNext(normal(null));
+    public Flowable<DownloadEvent> receiveDownloadEvent(String url) {
+        return this.eventHub.receive(url, () -> this.currentEvent(url));
+    }
+
+    /**
+     * Latest events of many urls in batches, see {@link EventHub#feed}.
+     *
+     * @param urls         urls or missionIds, null for all
+     * @param windowMillis batch window
+     * @return batches
+     */
+    public Flowable<List<DownloadEvent>> receiveDownloadEvents(final Set<String> urls, long windowMillis) {
+        return this.eventHub.feed(urls, windowMillis, () -> {
+            List<DownloadEvent> snapshot = new ArrayList<>();
+            if (urls == null) {
+                for (DownloadMission each : this.missionMap.values()) {
+                    DownloadEvent event = each.getLastEvent();
+                    if (event != null) {
+                        event.setUrl(each.getUrl());
+                        snapshot.add(event);
+                    }
+                }
             } else {
-                File file = getFiles(record.getSaveName(), record.getSavePath())[0];
-                if (file.exists()) {
-                    processor.onNext(createEvent(record.getFlag(), record.getStatus()));
-                } else {
-                    processor.onNext(normal(null));
+                for (String each : urls) {
+                    DownloadEvent event = this.currentEvent(each);
+                    event.setUrl(each);
+                    snapshot.add(event);
                 }
             }
+            return snapshot;
+        });
+    }
+
+    /**
+     * Live channels of the event hub.
+     *
+     * @return stats
+     */
+    public EventHub.Stats getEventHubStats() {
+        return this.eventHub.stats();
+    }
+
+    /**
+     * State of a url nobody listened to lately: the last event of its mission, else its record.
+     */
+    private DownloadEvent currentEvent(String url) {
+        DownloadMission mission = this.missionMap.get(url);
+        if (mission != null && mission.getLastEvent() != null) {
+            return mission.getLastEvent();
+        }
+        DownloadRecord record = this.dataBaseHelper.readSingleRecord(url);
+        if (record == null) {
+            return normal(null);
+        }
+        File file = getFiles(record.getSaveName(), record.getSavePath())[0];
+        if (file.exists()) {
+            return createEvent(record.getFlag(), record.getStatus());
         }
-        return processor;
+        return normal(null);
     }
 
     /**
-     * Add this mission into download queue.
+     * Add this mission into download queue. It starts at once if a download slot is free.
      *
      * @param mission mission
-     * @throws InterruptedException Blocking queue
      */
-    public void addDownloadMission(DownloadMission mission) throws InterruptedException {
-        mission.init(this.missionMap, this.processorMap);
+    public void addDownloadMission(DownloadMission mission) {
+        mission.init(this.missionMap, this.eventHub);
         mission.insertOrUpdate(this.dataBaseHelper);
         mission.sendWaitingEvent(this.dataBaseHelper);
-        this.downloadQueue.put(mission);
+        mission.start(this.scheduler, this.dataBaseHelper);
+    }
+
+    /**
+     * Change the priority of a url, or of all tasks belonging to missionId, also while it waits.
+     * <p>
+     * See {@link com.download.entity.DownloadPriority}.
+     *
+     * @param url      url or missionId
+     * @param priority priority
+     */
+    public void setPriority(String url, int priority) {
+        DownloadMission mission = this.missionMap.get(url);
+        if (mission != null) {
+            mission.setPriority(priority);
+        }
     }
 
     /**
@@ -162,7 +212,7 @@ public class DownloadService extends Service {
             mission.delete(this.dataBaseHelper, deleteFile);
             this.missionMap.remove(url);
         } else {
-            createProcessor(url, processorMap).onNext(normal(null));
+            this.eventHub.publish(url, normal(null));
 
             if (deleteFile) {
                 DownloadRecord record = this.dataBaseHelper.readSingleRecord(url);
@@ -176,10 +226,8 @@ public class DownloadService extends Service {
 
     /**
      * Start all mission. Not include MultiMission.
-     *
-     * @throws InterruptedException interrupt
      */
-    public void startAll() throws InterruptedException {
+    public void startAll() {
         for (DownloadMission each : this.missionMap.values()) {
             if (each.isCompleted()) {
                 continue;
@@ -204,16 +252,15 @@ public class DownloadService extends Service {
                 each.pause(this.dataBaseHelper);
             }
         }
-        this.downloadQueue.clear();
+        this.scheduler.clear();
     }
 
     /**
      * Start all mission which associate with missionId.
      *
      * @param missionId missionId
-     * @throws InterruptedException interrupt
      */
-    public void startAll(String missionId) throws InterruptedException {
+    public void startAll(String missionId) {
         DownloadMission mission = this.missionMap.get(missionId);
         if (mission == null) {
             log("mission not exists");
@@ -264,7 +311,7 @@ public class DownloadService extends Service {
             mission.delete(this.dataBaseHelper, deleteFile);
             this.missionMap.remove(missionId);
         } else {
-            createProcessor(missionId, this.processorMap).onNext(normal(null));
+            this.eventHub.publish(missionId, normal(null));
 
             if (deleteFile) {
                 List<DownloadRecord> list = this.dataBaseHelper.readMissionsRecord(missionId);
@@ -276,39 +323,14 @@ public class DownloadService extends Service {
         }
     }
 
-    /**
-     * start dispatch download queue.
-     */
-    private void startDispatch() {
-        this.disposable = Observable
-                .create((ObservableOnSubscribe<DownloadMission>) emitter -> {
-                    DownloadMission mission;
-                    while (!emitter.isDisposed()) {
-                        try {
-                            log(WAITING_FOR_MISSION_COME);
-                            mission = downloadQueue.take();
-                            log(Constant.MISSION_COMING);
-                        } catch (InterruptedException e) {
-                            log("Interrupt blocking queue.");
-                            continue;
-                        }
-                        emitter.onNext(mission);
-                    }
-                    emitter.onComplete();
-                })
-                .subscribeOn(Schedulers.newThread())
-                .subscribe(mission -> mission.start(this.semaphore), Utils::log);
-    }
-
     /**
      * Call when service is onDestroy.
      */
     private void destroy() {
-        dispose(this.disposable);
+        this.scheduler.clear();
         for (DownloadMission each : this.missionMap.values()) {
             each.pause(this.dataBaseHelper);
         }
-        this.downloadQueue.clear();
     }
 
     public class DownloadBinder extends Binder {
@@ -0,0 +1,254 @@
+package com.download.function;
+
+import com.download.entity.DownloadEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Flowable;
+import io.reactivex.processors.BehaviorProcessor;
+import io.reactivex.schedulers.Schedulers;
+
+import static com.download.function.Constant.EVENT_CHANNEL_EVICTED;
+import static com.download.function.Utils.log;
+
+/**
+ * Download events of urls and missionIds, one channel per key while somebody listens.
+ * <p>
+ * A channel counts its subscribers. When the last one leaves it is kept for a grace period, so a
+ * screen that resubscribes right away gets the last event as it was, and is dropped after it.
+ * Events of a key without a channel are not kept. A new channel starts from the state rebuilt by
+ * the caller, from the running mission or the record store, unless an event arrives first.
+ * <p>
+ * A feed watches many keys with one subscription. It keeps only the latest event per key and hands
+ * out what changed once per window, so a list of thousands of downloads gets one batch per frame.
+ */
+public class EventHub {
+    static final long GRACE_MILLIS = 30_000;
+
+    private final Map<String, Channel> channels = new HashMap<>();
+    private final List<Feed> feeds = new CopyOnWriteArrayList<>();
+    private final long graceMillis;
+
+    private long created;
+    private long evicted;
+
+    public EventHub() {
+        this(GRACE_MILLIS);
+    }
+
+    EventHub(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * Events of the key, starting with the latest one.
+     *
+     * @param key     url or missionId
+     * @param rebuild latest state, called if the key has no channel yet
+     * @return events
+     */
+    public Flowable<DownloadEvent> receive(final String key, final Callable<DownloadEvent> rebuild) {
+        return Flowable.defer(() -> {
+            Channel channel = this.acquire(key);
+            if (channel.claimRebuild()) {
+                try {
+                    DownloadEvent event = rebuild.call();  //outside the hub lock, it may read the database
+                    event.setUrl(key);
+                    channel.offer(event);
+                } catch (Exception e) {
+                    channel.abandonRebuild();
+                    this.release(key, channel);
+                    throw e;
+                }
+            }
+            return channel.processor.doFinally(() -> this.release(key, channel));
+        });
+    }
+
+    /**
+     * Send an event to the key's subscribers. Dropped if nobody listens, the state is rebuilt on subscribe.
+     *
+     * @param key   url or missionId
+     * @param event event
+     */
+    public void publish(String key, DownloadEvent event) {
+        event.setUrl(key);
+        for (Feed each : this.feeds) {
+            each.put(key, event);
+        }
+        Channel channel;
+        synchronized (this) {
+            channel = this.channels.get(key);
+        }
+        if (channel != null) {
+            channel.publish(event);
+        }
+    }
+
+    /**
+     * Latest events of many keys, batched. The first batch is the snapshot, later ones hold the keys
+     * whose state changed during the window, each with its latest event only. Empty windows send nothing.
+     *
+     * @param keys         urls or missionIds to watch, null for all
+     * @param windowMillis batch window, one frame is enough for a list
+     * @param snapshot     current events to start from, their url set
+     * @return batches
+     */
+    public Flowable<List<DownloadEvent>> feed(final Set<String> keys, final long windowMillis,
+                                              final Callable<List<DownloadEvent>> snapshot) {
+        return Flowable.defer(() -> {
+            Feed feed = new Feed(keys);
+            this.feeds.add(feed);
+            try {
+                for (DownloadEvent each : snapshot.call()) {
+                    feed.seed(each);
+                }
+            } catch (Exception e) {
+                this.feeds.remove(feed);
+                throw e;
+            }
+            return Flowable.interval(0, windowMillis, TimeUnit.MILLISECONDS)
+                    .onBackpressureDrop()  //a slow consumer skips windows, the feed keeps conflating
+                    .map(tick -> feed.drain())
+                    .filter(batch -> !batch.isEmpty())
+                    .doFinally(() -> this.feeds.remove(feed));
+        });
+    }
+
+    public synchronized Stats stats() {
+        int subscribers = 0;
+        int idle = 0;
+        for (Channel each : this.channels.values()) {
+            subscribers += each.subscribers;
+            if (each.subscribers == 0) {
+                idle++;
+            }
+        }
+        return new Stats(this.channels.size(), idle, subscribers, this.feeds.size(), this.created, this.evicted);
+    }
+
+    private synchronized Channel acquire(String key) {
+        Channel channel = this.channels.get(key);
+        if (channel == null) {
+            channel = new Channel();
+            this.channels.put(key, channel);
+            this.created++;
+        }
+        channel.subscribers++;
+        channel.generation++;  //a pending eviction is off
+        return channel;
+    }
+
+    private synchronized void release(final String key, final Channel channel) {
+        if (--channel.subscribers > 0) {
+            return;
+        }
+        final long generation = channel.generation;
+        Schedulers.single().scheduleDirect(() -> this.evict(key, channel, generation),
+                this.graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void evict(String key, Channel channel, long generation) {
+        if (channel.subscribers == 0 && channel.generation == generation && this.channels.get(key) == channel) {
+            this.channels.remove(key);
+            this.evicted++;
+            log(EVENT_CHANNEL_EVICTED, key);
+        }
+    }
+
+    private static class Channel {
+        final BehaviorProcessor<DownloadEvent> processor = BehaviorProcessor.create();
+        int subscribers;
+        long generation;
+        boolean fresh = true;
+
+        synchronized boolean claimRebuild() {
+            boolean fresh = this.fresh;
+            this.fresh = false;
+            return fresh;
+        }
+
+        /**
+         * The rebuild failed, the next subscriber tries again unless an event arrived meanwhile.
+         */
+        synchronized void abandonRebuild() {
+            this.fresh = !this.processor.hasValue();
+        }
+
+        synchronized void publish(DownloadEvent event) {
+            this.processor.onNext(event);
+        }
+
+        /**
+         * The rebuilt state, unless an event newer than it arrived meanwhile.
+         */
+        synchronized void offer(DownloadEvent event) {
+            if (!this.processor.hasValue()) {
+                this.processor.onNext(event);
+            }
+        }
+    }
+
+    private static class Feed {
+        final Set<String> keys;
+        private final Map<String, DownloadEvent> pending = new LinkedHashMap<>();
+
+        Feed(Set<String> keys) {
+            this.keys = keys;
+        }
+
+        synchronized void put(String key, DownloadEvent event) {
+            if (this.keys == null || this.keys.contains(key)) {
+                this.pending.put(key, event);
+            }
+        }
+
+        /**
+         * A snapshot event, unless an event newer than it arrived meanwhile.
+         */
+        synchronized void seed(DownloadEvent event) {
+            if (!this.pending.containsKey(event.getUrl())) {
+                this.put(event.getUrl(), event);
+            }
+        }
+
+        synchronized List<DownloadEvent> drain() {
+            if (this.pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<DownloadEvent> batch = new ArrayList<>(this.pending.values());
+            this.pending.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * Live channels, idle ones among them waiting out their grace period, their subscribers, and open feeds.
+     */
+    public static class Stats {
+        public final int channels;
+        public final int idle;
+        public final int subscribers;
+        public final int feeds;
+        public final long created;
+        public final long evicted;
+
+        Stats(int channels, int idle, int subscribers, int feeds, long created, long evicted) {
+            this.channels = channels;
+            this.idle = idle;
+            this.subscribers = subscribers;
+            this.feeds = feeds;
+            this.created = created;
+            this.evicted = evicted;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.download.function;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.download.function.Constant.FAIR_SHARE_REBALANCED;
+import static com.download.function.Utils.log;
+
+/**
+ * Weighted fair sharing of the measured link capacity between running downloads.
+ * <p>
+ * Every half second the bytes each download read are turned into a rate, their sum is the capacity
+ * the link gave, and it is split by weight. A download above its part is limited to it, plus a little
+ * so the capacity can be measured higher next time. A download below its part is given a quarter
+ * more than it read, taken from the others, until it reaches its part. If it does not use what it was
+ * given, something else holds it back, its server or its own limits: it keeps what it reads unlimited,
+ * the others split the rest, and it is tried again after a few seconds. While the capacity grows into
+ * the headroom it was given, the link has room to spare, after a dip for instance, so the headroom
+ * doubles every period until the capacity stops growing, then falls back to a little. One download
+ * alone, or a period with nothing read, lifts the limits. A download's connections share its one part,
+ * so more connections to one host no longer mean more of the link.
+ */
+public class FairShare {
+    private static final long PERIOD_NANOS = 500_000_000L;
+    private static final int HELD_PERIODS = 10;
+    private static final double GROWTH = 1.25;
+    private static final double PROBE = 1.05;
+    private static final double MAX_PROBE = 16;
+    private static final long MIN_RATE = 16 * 1024;
+
+    private static final List<Share> shares = new ArrayList<>();
+    private static volatile boolean enabled;
+    private static volatile long nextMeasure;
+    private static long lastMeasure = System.nanoTime();
+    private static double capacity;
+    private static double probe = PROBE;
+
+    private FairShare() {
+    }
+
+    public static synchronized void setEnabled(boolean enabled) {
+        FairShare.enabled = enabled;
+        long now = System.nanoTime();
+        lastMeasure = now;
+        nextMeasure = now + PERIOD_NANOS;
+        capacity = 0;
+        probe = PROBE;
+        for (Share each : shares) {
+            each.bytes.set(0);
+            each.fresh = true;
+            each.held = 0;
+        }
+        split();
+    }
+
+    /**
+     * Change the weight of a running download, for a priority change.
+     *
+     * @param url    url
+     * @param weight weight
+     */
+    public static synchronized void setWeight(String url, int weight) {
+        for (Share each : shares) {
+            if (each.url.equals(url)) {
+                each.weight = Math.max(weight, 1);
+            }
+        }
+        split();
+    }
+
+    static synchronized Share join(String url, int weight) {
+        Share share = new Share(url, Math.max(weight, 1));
+        shares.add(share);
+        split();
+        log(FAIR_SHARE_REBALANCED, shares.size(), (long) capacity);
+        return share;
+    }
+
+    static synchronized void leave(Share share) {
+        shares.remove(share);
+        share.bucket.setRate(0);
+        split();
+        log(FAIR_SHARE_REBALANCED, shares.size(), (long) capacity);
+    }
+
+    /**
+     * Count a read against the download's share.
+     *
+     * @return nanos to park, 0 if the download is within its share
+     */
+    static long take(Share share, int bytes) {
+        if (!enabled) {
+            return 0;
+        }
+        share.bytes.addAndGet(bytes);
+        if (System.nanoTime() - nextMeasure >= 0) {
+            measureIfDue();
+        }
+        return share.bucket.take(bytes);
+    }
+
+    private static synchronized void measureIfDue() {
+        long now = System.nanoTime();
+        if (now - nextMeasure < 0) {
+            return;
+        }
+        double seconds = (double) (now - lastMeasure) / 1000_000_000L;
+        double last = capacity;
+        capacity = 0;
+        for (Share each : shares) {
+            each.measured = each.bytes.getAndSet(0) / seconds;
+            each.fresh = each.joined - lastMeasure > 0;  //not there for the whole period, its rate says nothing
+            capacity += each.measured;
+            if (each.held > 0) {
+                if (++each.held > HELD_PERIODS) {
+                    each.held = 0;
+                }
+            } else if (each.offered > 0 && each.measured < each.offered * 0.9) {
+                each.held = 1;
+                each.demand = each.measured;
+            }
+        }
+        probe = last > 0 && capacity > last * (1 + (probe - 1) / 2) ? Math.min(probe * 2, MAX_PROBE) : PROBE;
+        lastMeasure = now;
+        nextMeasure = now + PERIOD_NANOS;
+        split();
+    }
+
+    /**
+     * Split the last measured capacity by weight. A download that joined since gets a full part.
+     */
+    private static void split() {
+        if (!enabled || shares.size() < 2 || capacity <= 0) {
+            for (Share each : shares) {
+                each.offered = 0;
+                each.bucket.retune(0);
+            }
+            return;
+        }
+        List<Share> open = new ArrayList<>();
+        double remaining = capacity;
+        for (Share each : shares) {
+            each.offered = 0;
+            if (each.held > 0) {
+                remaining -= Math.max(each.measured, each.demand);
+                each.bucket.retune(0);
+            } else {
+                open.add(each);
+            }
+        }
+        boolean settled = false;
+        while (!settled) {
+            settled = true;
+            long weights = weights(open);
+            for (int i = open.size() - 1; i >= 0; i--) {
+                Share each = open.get(i);
+                double part = remaining * each.weight / weights;
+                if (!each.fresh && each.measured < part) {
+                    each.offered = Math.min(part, each.measured * GROWTH);
+                    each.bucket.retune(Math.max(MIN_RATE, (long) each.offered));
+                    remaining -= each.offered;
+                    open.remove(i);
+                    settled = false;
+                }
+            }
+        }
+        long weights = weights(open);
+        for (Share each : open) {
+            double part = Math.max(remaining, 0) * each.weight / weights;
+            each.bucket.retune(Math.max(MIN_RATE, (long) (part * probe)));
+        }
+    }
+
+    private static long weights(List<Share> shares) {
+        long weights = 0;
+        for (Share each : shares) {
+            weights += each.weight;
+        }
+        return weights;
+    }
+
+    /**
+     * One running download's part of the link.
+     */
+    static final class Share {
+        final String url;
+        final BandwidthLimiter.Bucket bucket = new BandwidthLimiter.Bucket();
+        final AtomicLong bytes = new AtomicLong();
+        final long joined = System.nanoTime();
+        int weight;
+        boolean fresh = true;
+        double measured;
+        double offered;
+        double demand;
+        int held;
+
+        Share(String url, int weight) {
+            this.url = url;
+            this.weight = weight;
+        }
+    }
+}
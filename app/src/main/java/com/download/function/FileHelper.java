@@ -1,47 +1,42 @@
 package com.download.function;
 
-import com.download.entity.DownloadRange;
 import com.download.entity.DownloadStatus;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.text.ParseException;
 
 import io.reactivex.FlowableEmitter;
 import okhttp3.ResponseBody;
+import retrofit2.HttpException;
 import retrofit2.Response;
 
 import static com.download.function.Constant.CHUNKED_DOWNLOAD_HINT;
+import static com.download.function.Constant.DIGEST_VERIFIED;
+import static com.download.function.Constant.NORMAL_DOWNLOAD_ALREADY_COMPLETE;
+import static com.download.function.Constant.NORMAL_DOWNLOAD_RANGE_MISMATCH;
+import static com.download.function.Constant.NORMAL_DOWNLOAD_RESUMED;
 import static com.download.function.Utils.GMTToLong;
 import static com.download.function.Utils.closeQuietly;
+import static com.download.function.Utils.formatStr;
 import static com.download.function.Utils.isChunked;
 import static com.download.function.Utils.log;
 import static com.download.function.Utils.longToGMT;
-import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static com.download.function.Utils.rangeStart;
 
 public class FileHelper {
-    private static final int EACH_RECORD_SIZE = 16; //long + long = 8 + 8
     private static final String ACCESS = "rw";
-    private int RECORD_FILE_TOTAL_SIZE;
-    //|*********************|
-    //|*****Record  File****|
-    //|*********************|
-    //|  0L      |     7L   | 0
-    //|  8L      |     15L  | 1
-    //|  16L     |     31L  | 2
-    //|  ...     |     ...  | maxThreads-1
-    //|*********************|
     private int maxThreads;
+    private int sinkType;
 
-    public FileHelper(int maxThreads) {
+    public FileHelper(int maxThreads, int sinkType) {
         this.maxThreads = maxThreads;
-        RECORD_FILE_TOTAL_SIZE = EACH_RECORD_SIZE * maxThreads;
+        this.sinkType = sinkType;
     }
 
     public void prepareDownload(File lastModifyFile, File saveFile, long fileLength, String lastModify) throws IOException, ParseException {
@@ -49,21 +44,55 @@ public class FileHelper {
         this.prepareFile(saveFile, fileLength);
     }
 
-    public void saveFile(FlowableEmitter<DownloadStatus> emitter, File saveFile, Response<ResponseBody> resp) {
+    /**
+     * Normal download save. A 206 response is appended to what the file already holds, a 200
+     * rewrites the file from the start. A 416 means the file holds every byte already, the
+     * record has checked its length. Any other status fails with a retryable {@link HttpException}
+     * and leaves the file as it is.
+     *
+     * @param emitter  emitter
+     * @param saveFile file
+     * @param resp     response
+     * @param digest   digest to verify, may be null
+     * @param throttle bandwidth limits of the download
+     * @param meter    throughput of the download
+     */
+    public void saveFile(FlowableEmitter<DownloadStatus> emitter, File saveFile, Response<ResponseBody> resp,
+                         StreamDigest digest, BandwidthLimiter.Throttle throttle, ThroughputMeter meter) {
         InputStream inputStream = null;
         OutputStream outputStream = null;
         try {
             try {
                 int readLen;
-                int downloadSize = 0;
+                long downloadSize = 0;
                 byte[] buffer = new byte[8192];
 
                 DownloadStatus status = new DownloadStatus();
+                int code = resp.code();
+                if (code == 416) {
+                    this.complete(emitter, saveFile, status, digest);
+                    return;
+                }
+                if (code != 200 && code != 206) {
+                    emitter.onError(new HttpException(resp));
+                    return;
+                }
                 if (resp.body() != null) {
                     inputStream = resp.body().byteStream();
                 }
 
-                outputStream = new FileOutputStream(saveFile);
+                boolean append = resp.code() == 206;
+                if (append) {
+                    downloadSize = saveFile.length();
+                    if (rangeStart(resp) != downloadSize) {
+                        throw new IOException(formatStr(NORMAL_DOWNLOAD_RANGE_MISMATCH, rangeStart(resp), downloadSize));
+                    }
+                    if (digest != null) {
+                        this.update(digest, saveFile, downloadSize);
+                    }
+                    log(NORMAL_DOWNLOAD_RESUMED, downloadSize);
+                }
+                outputStream = new FileOutputStream(saveFile, append);
 
                 long contentLength = 0;
                 if (resp.body() != null) {
@@ -75,72 +104,104 @@ public class FileHelper {
                     status.isChunked = true;
                 }
 
-                status.setTotalSize(contentLength);
+                status.setTotalSize(contentLength == -1 ? -1 : downloadSize + contentLength);
+                status.setDownloadSize(downloadSize);
+                meter.start(downloadSize);
 
                 if (inputStream != null) {
                     while ((readLen = inputStream.read(buffer)) != -1 && !emitter.isCancelled()) {
                         outputStream.write(buffer, 0, readLen);
+                        if (digest != null) {
+                            digest.update(buffer, 0, readLen);
+                        }
                         downloadSize += readLen;
                         status.setDownloadSize(downloadSize);
+                        meter.update(status);
                         emitter.onNext(status);
+                        throttle.acquire(readLen);
                     }
                 }
 
                 outputStream.flush(); // This is important!!!
+                if (digest != null && !emitter.isCancelled()) {
+                    digest.verify(saveFile.getName());
+                    log(DIGEST_VERIFIED, saveFile.getName());
+                }
                 emitter.onComplete();
             } finally {
                 closeQuietly(inputStream);
                 closeQuietly(outputStream);
                 closeQuietly(resp.body());
+                closeQuietly(resp.errorBody());
             }
         } catch (IOException e) {
             emitter.onError(e);
         }
     }
 
-    public void prepareDownload(File lastModifyFile, File tempFile, File saveFile, long fileLength, String lastModify) throws IOException, ParseException {
+    public RecordFile prepareDownload(File lastModifyFile, File tempFile, File saveFile, long fileLength,
+                                      String lastModify, String validator) throws IOException, ParseException {
         this.writeLastModify(lastModifyFile, lastModify);
-        this.prepareFile(tempFile, saveFile, fileLength);
+        return this.prepareFile(tempFile, saveFile, fileLength, validator);
     }
 
-    public void saveFile(FlowableEmitter<DownloadStatus> emitter, int i, File tempFile, File saveFile, ResponseBody response) {
-        RandomAccessFile record = null;
-        FileChannel recordChannel = null;
-        RandomAccessFile save = null;
-        FileChannel saveChannel = null;
+    public void saveFile(FlowableEmitter<DownloadStatus> emitter, int index, SegmentScheduler scheduler,
+                         File saveFile, ResponseBody response, ProgressAccumulator progress,
+                         BandwidthLimiter.Throttle throttle, ThroughputMeter meter, DigestCursor cursor) {
+        SegmentSink sink = null;
         InputStream inStream = null;
         try {
+            long committed = 0;
+            long start = -1;
             try {
                 int readLen;
-                byte[] buffer = new byte[2048];
+                byte[] buffer = new byte[8192];
 
                 DownloadStatus status = new DownloadStatus();
-                record = new RandomAccessFile(tempFile, ACCESS);
-                recordChannel = record.getChannel();
-                MappedByteBuffer recordBuffer = recordChannel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-                int startIndex = i * EACH_RECORD_SIZE;
-                long start = recordBuffer.getLong(startIndex);
-                long totalSize = recordBuffer.getLong(RECORD_FILE_TOTAL_SIZE - 8) + 1;
-                status.setTotalSize(totalSize);
-                save = new RandomAccessFile(saveFile, ACCESS);
-                saveChannel = save.getChannel();
+                status.setTotalSize(progress.totalSize());
+                long position = scheduler.range(index).start;
+                start = position;
+                sink = SegmentSink.open(this.sinkType, saveFile, position);
+                committed = position;
                 inStream = response.byteStream();
 
                 while ((readLen = inStream.read(buffer)) != -1 && !emitter.isCancelled()) {
-                    MappedByteBuffer saveBuffer = saveChannel.map(READ_WRITE, start, readLen);
-                    start += readLen;
-                    saveBuffer.put(buffer, 0, readLen);
-                    recordBuffer.putLong(startIndex, start);
-                    status.setDownloadSize(totalSize - getResidue(recordBuffer));
+                    long end = scheduler.end(index);
+                    int length = (int) Math.min(readLen, end - position + 1);
+                    if (length > 0) {
+                        sink.write(buffer, 0, length);
+                        position += length;
+                        scheduler.advance(index, position);
+                    }
+                    committed = commit(scheduler, index, sink, committed, progress, cursor);
+                    status.setDownloadSize(progress.downloaded());
+                    status.setConnections(progress.connections());
+                    status.setTargetConnections(progress.targetConnections());
+                    meter.update(status);
                     emitter.onNext(status);
+                    throttle.acquire(readLen);
+                    if (position > end) {
+                        break;  //reached the end, or another worker stole the rest
+                    }
+                    if (scheduler.shouldYield(index)) {
+                        break;  //connection dropped, the rest stays pending
+                    }
                 }
 
+                sink.flush();
+                committed = commit(scheduler, index, sink, committed, progress, cursor);
+                status.setDownloadSize(progress.downloaded());  //the flush committed what the sink still held
+                status.setConnections(progress.connections());
+                status.setTargetConnections(progress.targetConnections());
+                meter.update(status);
+                emitter.onNext(status);
                 emitter.onComplete();
             } finally {
-                closeQuietly(record);
-                closeQuietly(recordChannel);
-                closeQuietly(save);
-                closeQuietly(saveChannel);
+                if (sink != null) {
+                    closeQuietly(sink);
+                    commit(scheduler, index, sink, committed, progress, null);
+                    DownloadMetrics.record(DownloadMetrics.RANGE_BYTES, sink.committed() - start);
+                }
                 closeQuietly(inStream);
                 closeQuietly(response);
             }
@@ -149,61 +210,22 @@ public class FileHelper {
         }
     }
 
-    public boolean fileNotComplete(File tempFile) throws IOException {
-        RandomAccessFile record = null;
-        FileChannel channel = null;
-        try {
-            record = new RandomAccessFile(tempFile, ACCESS);
-            channel = record.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-
-            long startByte;
-            long endByte;
-            for (int i = 0; i < maxThreads; i++) {
-                startByte = buffer.getLong();
-                endByte = buffer.getLong();
-                if (startByte <= endByte) {
-                    return true;
-                }
-            }
-            return false;
-        } finally {
-            closeQuietly(channel);
-            closeQuietly(record);
-        }
-    }
-
-    public boolean tempFileDamaged(File tempFile, long fileLength) throws IOException {
-
-        RandomAccessFile record = null;
-        FileChannel channel = null;
-        try {
-            record = new RandomAccessFile(tempFile, ACCESS);
-            channel = record.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-            long recordTotalSize = buffer.getLong(RECORD_FILE_TOTAL_SIZE - 8) + 1;
-            return recordTotalSize != fileLength;
-        } finally {
-            closeQuietly(channel);
-            closeQuietly(record);
-        }
-    }
-
-    public DownloadRange readDownloadRange(File tempFile, int i) throws IOException {
-        RandomAccessFile record = null;
-        FileChannel channel = null;
-        try {
-            record = new RandomAccessFile(tempFile, ACCESS);
-            channel = record.getChannel();
-            MappedByteBuffer buffer = channel
-                    .map(READ_WRITE, i * EACH_RECORD_SIZE, (i + 1) * EACH_RECORD_SIZE);
-            long startByte = buffer.getLong();
-            long endByte = buffer.getLong();
-            return new DownloadRange(startByte, endByte);
-        } finally {
-            closeQuietly(channel);
-            closeQuietly(record);
+    /**
+     * Verify a file whose ranges were written out of order. The cursor has hashed the file as its
+     * prefix completed, only the rest is read here. The whole file is read again if the cursor failed.
+     *
+     * @param saveFile file
+     * @param cursor   digest cursor of the download
+     * @throws IOException
+     */
+    public void verifyFile(File saveFile, DigestCursor cursor) throws IOException {
+        StreamDigest digest = cursor.finish();
+        if (digest == null) {
+            digest = cursor.fresh();
+            this.update(digest, saveFile, saveFile.length());
         }
+        digest.verify(saveFile.getName());
+        log(DIGEST_VERIFIED, saveFile.getName());
     }
 
     public String readLastModify(File lastModifyFile) throws IOException {
@@ -217,50 +239,27 @@ public class FileHelper {
         }
     }
 
-    private void prepareFile(File tempFile, File saveFile, long fileLength)
+    private RecordFile prepareFile(File tempFile, File saveFile, long fileLength, String validator)
             throws IOException {
         RandomAccessFile rFile = null;
-        RandomAccessFile rRecord = null;
-        FileChannel channel = null;
         try {
             rFile = new RandomAccessFile(saveFile, ACCESS);
             rFile.setLength(fileLength);
-
-            rRecord = new RandomAccessFile(tempFile, ACCESS);
-            rRecord.setLength(RECORD_FILE_TOTAL_SIZE);
-
-            channel = rRecord.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-
-            long start;
-            long end;
-            int eachSize = (int) (fileLength / maxThreads);
-
-            for (int i = 0; i < maxThreads; i++) {
-                if (i == maxThreads - 1) {
-                    start = i * eachSize;
-                    end = fileLength - 1;
-                } else {
-                    start = i * eachSize;
-                    end = (i + 1) * eachSize - 1;
-                }
-                buffer.putLong(start);
-                buffer.putLong(end);
-            }
+            return RecordFile.create(tempFile, fileLength, validator, this.maxThreads);
         } finally {
-            closeQuietly(channel);
-            closeQuietly(rRecord);
             closeQuietly(rFile);
         }
     }
 
+    /**
+     * The length of a normal download's file is its resume offset, so the file is emptied, not pre-sized.
+     */
     private void prepareFile(File saveFile, long fileLength) throws IOException {
         RandomAccessFile file = null;
         try {
             file = new RandomAccessFile(saveFile, ACCESS);
-            if (fileLength != -1) {
-                file.setLength(fileLength);
-            } else {
+            file.setLength(0);
+            if (fileLength == -1) {
                 log(CHUNKED_DOWNLOAD_HINT);
             }
         } finally {
@@ -268,6 +267,42 @@ public class FileHelper {
         }
     }
 
+    /**
+     * The file already holds every byte: report its size, verify it and complete.
+     */
+    private void complete(FlowableEmitter<DownloadStatus> emitter, File saveFile, DownloadStatus status,
+                          StreamDigest digest) throws IOException {
+        long length = saveFile.length();
+        status.setTotalSize(length);
+        status.setDownloadSize(length);
+        if (digest != null) {
+            this.update(digest, saveFile, length);
+            digest.verify(saveFile.getName());
+            log(DIGEST_VERIFIED, saveFile.getName());
+        }
+        log(NORMAL_DOWNLOAD_ALREADY_COMPLETE, length);
+        emitter.onNext(status);
+        emitter.onComplete();
+    }
+
+    /**
+     * Feed the first length bytes of the file to the digest.
+     */
+    private void update(StreamDigest digest, File file, long length) throws IOException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+            int readLen;
+            while (length > 0 && (readLen = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length))) != -1) {
+                digest.update(buffer, 0, readLen);
+                length -= readLen;
+            }
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
     private void writeLastModify(File file, String lastModify) throws IOException, ParseException {
         RandomAccessFile record = null;
         try {
@@ -281,19 +316,21 @@ public class FileHelper {
     }
 
     /**
-     * 还剩多少字节没有下载
+     * Persist the sink's committed position, count the new bytes and hash the prefix they complete.
      *
-     * @param recordBuffer buffer
-     * @return 剩余的字节
+     * @param cursor digest cursor, may be null
+     * @return committed position
      */
-    private long getResidue(MappedByteBuffer recordBuffer) {
-        long residue = 0;
-        for (int j = 0; j < maxThreads; j++) {
-            long startTemp = recordBuffer.getLong(j * EACH_RECORD_SIZE);
-            long endTemp = recordBuffer.getLong(j * EACH_RECORD_SIZE + 8);
-            long temp = endTemp - startTemp + 1;
-            residue += temp;
+    private long commit(SegmentScheduler scheduler, int index, SegmentSink sink,
+                        long committed, ProgressAccumulator progress, DigestCursor cursor) {
+        long current = sink.committed();
+        if (current != committed) {
+            scheduler.commit(index, current);
+            progress.add(index, current - committed);
+            if (cursor != null) {
+                cursor.advance(scheduler);
+            }
         }
-        return residue;
+        return current;
     }
 }
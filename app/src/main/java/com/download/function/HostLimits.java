@@ -0,0 +1,157 @@
+package com.download.function;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Per host budgets of running missions and open range connections, shared by every download.
+ * <p>
+ * {@link MissionScheduler} admits a mission only while its host is below both limits, and skips to
+ * missions of other hosts otherwise. Every download may open its first range connection, further
+ * ones only while the host has connections to spare. With byAddress, hosts resolving to the same
+ * IP share one budget. 0 means no limit.
+ */
+public class HostLimits {
+    private static final Map<String, Counter> counters = new HashMap<>();
+    private static final Map<String, String> addresses = new ConcurrentHashMap<>();
+    private static volatile int maxMissions;
+    private static volatile int maxConnections;
+    private static volatile boolean byAddress;
+
+    private HostLimits() {
+    }
+
+    /**
+     * @param maxMissionsPerHost    running missions per host, 0 for no limit
+     * @param maxConnectionsPerHost range connections per host over all its missions, 0 for no limit
+     * @param byAddress             count per resolved IP instead of per host name
+     */
+    public static void setLimits(int maxMissionsPerHost, int maxConnectionsPerHost, boolean byAddress) {
+        HostLimits.maxMissions = maxMissionsPerHost;
+        HostLimits.maxConnections = maxConnectionsPerHost;
+        HostLimits.byAddress = byAddress;
+    }
+
+    /**
+     * The budget a url counts against. May resolve the host, so not for the main thread when byAddress is on.
+     *
+     * @param url url
+     * @return host name, or IP address
+     */
+    public static String key(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) {
+            return url;
+        }
+        String host = httpUrl.host();
+        if (!byAddress) {
+            return host;
+        }
+        String address = addresses.get(host);
+        if (address == null) {
+            try {
+                address = InetAddress.getByName(host).getHostAddress();
+            } catch (UnknownHostException e) {
+                return host;  //not cached, the next mission tries again
+            }
+            addresses.put(host, address);
+        }
+        return address;
+    }
+
+    static synchronized boolean canAdmit(String key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            return true;
+        }
+        return (maxMissions <= 0 || counter.missions < maxMissions)
+                && (maxConnections <= 0 || counter.connections < maxConnections);
+    }
+
+    static synchronized void missionStarted(String key) {
+        counter(key).missions++;
+    }
+
+    static synchronized void missionEnded(String key) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.missions--;
+            removeIfIdle(key, counter);
+        }
+    }
+
+    /**
+     * @param force the download has no connection yet, it gets one even over the limit
+     * @return true if the connection may open
+     */
+    static synchronized boolean tryAcquireConnection(String key, boolean force) {
+        Counter counter = counter(key);
+        if (!force && maxConnections > 0 && counter.connections >= maxConnections) {
+            removeIfIdle(key, counter);
+            return false;
+        }
+        counter.connections++;
+        return true;
+    }
+
+    static synchronized void releaseConnection(String key) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.connections--;
+            removeIfIdle(key, counter);
+        }
+    }
+
+    static synchronized boolean hasConnectionBudget(String key) {
+        Counter counter = counters.get(key);
+        return maxConnections <= 0 || counter == null || counter.connections < maxConnections;
+    }
+
+    /**
+     * Live counters of every host with a running mission or an open connection.
+     *
+     * @return host to counters
+     */
+    public static synchronized Map<String, Stats> stats() {
+        Map<String, Stats> result = new HashMap<>();
+        for (Map.Entry<String, Counter> each : counters.entrySet()) {
+            result.put(each.getKey(), new Stats(each.getValue().missions, each.getValue().connections));
+        }
+        return result;
+    }
+
+    private static Counter counter(String key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(key, counter);
+        }
+        return counter;
+    }
+
+    private static void removeIfIdle(String key, Counter counter) {
+        if (counter.missions <= 0 && counter.connections <= 0) {
+            counters.remove(key);
+        }
+    }
+
+    private static class Counter {
+        int missions;
+        int connections;
+    }
+
+    public static class Stats {
+        public final int missions;
+        public final int connections;
+
+        Stats(int missions, int connections) {
+            this.missions = missions;
+            this.connections = connections;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.download.function;
+
+import com.download.entity.DownloadPriority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.download.function.Constant.MISSION_PREEMPTED;
+import static com.download.function.Utils.log;
+
+/**
+ * Hands out the service's download slots.
+ * <p>
+ * Nothing waits on a thread: a task is started from {@link #submit(Task)} if a slot is free, otherwise
+ * it is queued, and the slot a finished task gives back in {@link #release(Task)} goes to the queue head.
+ * The queue is ordered by priority, then round robin over missions: each task of a mission takes the
+ * mission's next round, counted from the round being granted when it was submitted, so the members of
+ * a large multi mission take turns with every other queued mission instead of going first all together.
+ * A task whose host is at its {@link HostLimits}, or whose mission holds its max slots, is passed over,
+ * so other missions keep starting. A task of {@link DownloadPriority#URGENT}
+ * that finds no free slot preempts the lowest priority running task below it, of its own host if the
+ * host is what blocks it. The preempted task goes back to the queue in its old place and resumes from
+ * its record when a slot frees up again.
+ * <p>
+ * Callbacks run after the lock is released, so a grant and the preemption of it may reach a task in
+ * either order. Every grant has its own id: a task starts only while {@link #isGranted(Task, long)} holds
+ * for the id it was given, and releases that id only.
+ */
+public class MissionScheduler {
+    private final TreeSet<Ticket> waiting = new TreeSet<>((a, b) -> {
+        if (a.priority != b.priority) {
+            return a.priority > b.priority ? -1 : 1;
+        }
+        if (a.round != b.round) {
+            return Long.compare(a.round, b.round);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    });
+    private final List<Ticket> running = new ArrayList<>();
+    private final Map<Task, Ticket> tickets = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+    private int maxSlots;
+    private int maxSlotsPerMission;
+    private long sequence;
+    private long grants;
+    private long round;
+
+    public MissionScheduler(int maxSlots) {
+        this.maxSlots = maxSlots;
+    }
+
+    /**
+     * Start the task now if a slot is free, otherwise queue it. Submitting a queued or running task again does nothing.
+     *
+     * @param task task
+     */
+    public void submit(Task task) {
+        String host = HostLimits.key(task.getUrl());
+        List<Runnable> actions;
+        synchronized (this) {
+            if (this.tickets.containsKey(task)) {
+                return;
+            }
+            String key = task.getMissionId() == null ? task.getUrl() : task.getMissionId();
+            Group group = this.groups.get(key);
+            if (group == null) {
+                group = new Group(key);
+                this.groups.put(key, group);
+            }
+            Ticket ticket = new Ticket(task, host, group, task.getPriority(), this.sequence++);
+            ticket.round = Math.max(group.nextRound, this.round);
+            group.nextRound = ticket.round + 1;
+            group.tickets++;
+            this.tickets.put(task, ticket);
+            this.waiting.add(ticket);
+            actions = this.schedule();
+        }
+        run(actions);
+    }
+
+    /**
+     * Give back the slot of a finished task. A task that was preempted keeps its place in the queue,
+     * its release only says that its connections are closed now, as does the release of an older grant.
+     *
+     * @param task  task
+     * @param grant id of the grant the task ran under
+     */
+    public void release(Task task, long grant) {
+        List<Runnable> actions;
+        synchronized (this) {
+            Ticket ticket = this.tickets.get(task);
+            if (ticket == null) {
+                return;
+            }
+            if (ticket.running && ticket.grant == grant) {
+                this.forget(ticket);
+                this.running.remove(ticket);
+                ticket.group.running--;
+                HostLimits.missionEnded(ticket.host);
+            }
+            actions = this.schedule();
+        }
+        run(actions);
+    }
+
+    /**
+     * @param task  task
+     * @param grant id passed to {@link Task#onGranted(long)}
+     * @return true if the task still holds that grant, false once it was preempted or released
+     */
+    public synchronized boolean isGranted(Task task, long grant) {
+        Ticket ticket = this.tickets.get(task);
+        return ticket != null && ticket.running && ticket.grant == grant;
+    }
+
+    /**
+     * Drop a queued task, a running one keeps its slot until it is released.
+     *
+     * @param task task
+     */
+    public void remove(Task task) {
+        synchronized (this) {
+            Ticket ticket = this.tickets.get(task);
+            if (ticket != null && !ticket.running) {
+                this.forget(ticket);
+                this.waiting.remove(ticket);
+            }
+        }
+    }
+
+    /**
+     * Drop every queued task.
+     */
+    public synchronized void clear() {
+        for (Ticket each : this.waiting) {
+            this.forget(each);
+        }
+        this.waiting.clear();
+    }
+
+    /**
+     * Move a task to another priority. A queued task is reordered, raising one to urgent may preempt.
+     *
+     * @param task     task
+     * @param priority new priority
+     */
+    public void setPriority(Task task, int priority) {
+        List<Runnable> actions;
+        synchronized (this) {
+            Ticket ticket = this.tickets.get(task);
+            if (ticket == null) {
+                return;
+            }
+            if (ticket.running) {
+                ticket.priority = priority;
+            } else {
+                this.waiting.remove(ticket);
+                ticket.priority = priority;
+                this.waiting.add(ticket);
+            }
+            actions = this.schedule();
+        }
+        run(actions);
+    }
+
+    public void setMaxSlots(int maxSlots) {
+        List<Runnable> actions;
+        synchronized (this) {
+            this.maxSlots = maxSlots;
+            actions = this.schedule();
+        }
+        run(actions);
+    }
+
+    /**
+     * Cap the slots the tasks of one mission may hold at once, 0 for no cap.
+     *
+     * @param maxSlotsPerMission max slots per mission
+     */
+    public void setMaxSlotsPerMission(int maxSlotsPerMission) {
+        List<Runnable> actions;
+        synchronized (this) {
+            this.maxSlotsPerMission = maxSlotsPerMission;
+            actions = this.schedule();
+        }
+        run(actions);
+    }
+
+    public synchronized int running() {
+        return this.running.size();
+    }
+
+    public synchronized int waiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * Fill free slots in queue order, passing over tasks whose host or mission is full, and preempt for urgent tasks.
+     * Called with the lock held, the returned actions run after it is released, they call back into missions.
+     */
+    private List<Runnable> schedule() {
+        List<Runnable> actions = new ArrayList<>();
+        Set<Ticket> preempting = new HashSet<>();
+        boolean again = true;
+        while (again) {
+            again = false;
+            for (Iterator<Ticket> iterator = this.waiting.iterator(); iterator.hasNext(); ) {
+                Ticket each = iterator.next();
+                if (each.task.isCanceled()) {
+                    iterator.remove();
+                    this.forget(each);
+                    continue;
+                }
+                if (this.maxSlotsPerMission > 0 && each.group.running >= this.maxSlotsPerMission) {
+                    continue;  //its mission holds enough, the slot goes to another one
+                }
+                boolean slotFree = this.running.size() < this.maxSlots;
+                boolean hostFree = HostLimits.canAdmit(each.host);
+                if (slotFree && hostFree) {
+                    iterator.remove();
+                    this.grant(each, actions);
+                    continue;
+                }
+                if (each.priority < DownloadPriority.URGENT) {
+                    if (!slotFree) {
+                        break;  //the rest are not urgent either
+                    }
+                    continue;
+                }
+                if (preempting.contains(each)) {
+                    continue;  //one victim per pass, its connections may still be closing
+                }
+                Ticket victim = this.victim(each.priority, hostFree ? null : each.host);
+                if (victim != null) {
+                    preempting.add(each);
+                    log(MISSION_PREEMPTED, victim.task.getUrl(), each.task.getUrl());
+                    this.running.remove(victim);
+                    victim.running = false;
+                    victim.queued = System.nanoTime();
+                    victim.group.running--;
+                    HostLimits.missionEnded(victim.host);
+                    this.waiting.add(victim);
+                    final long grant = victim.grant;
+                    actions.add(() -> victim.task.onPreempted(grant));
+                    again = true;  //the queue changed, start over
+                    break;
+                }
+            }
+        }
+        return actions;
+    }
+
+    private void grant(Ticket ticket, List<Runnable> actions) {
+        ticket.running = true;
+        ticket.grant = this.grants++;
+        DownloadMetrics.record(DownloadMetrics.QUEUE_WAIT, ticket.task.getUrl(), (System.nanoTime() - ticket.queued) / 1000);
+        ticket.group.running++;
+        this.round = Math.max(this.round, ticket.round);
+        this.running.add(ticket);
+        HostLimits.missionStarted(ticket.host);
+        final long grant = ticket.grant;
+        actions.add(() -> ticket.task.onGranted(grant));
+    }
+
+    /**
+     * The lowest priority running ticket below priority, of host if not null, the latest started of those,
+     * it has the least to lose.
+     */
+    private Ticket victim(int priority, String host) {
+        Ticket victim = null;
+        for (Ticket each : this.running) {
+            if (each.priority >= priority || (host != null && !host.equals(each.host))) {
+                continue;
+            }
+            if (victim == null || each.priority < victim.priority
+                    || (each.priority == victim.priority && each.grant > victim.grant)) {
+                victim = each;
+            }
+        }
+        return victim;
+    }
+
+    private void forget(Ticket ticket) {
+        this.tickets.remove(ticket.task);
+        if (--ticket.group.tickets == 0) {
+            this.groups.remove(ticket.group.key);
+        }
+    }
+
+    private static void run(List<Runnable> actions) {
+        for (Runnable each : actions) {
+            each.run();
+        }
+    }
+
+    /**
+     * A download that needs a slot.
+     */
+    public interface Task {
+        String getUrl();
+
+        /**
+         * @return id of the multi mission the task belongs to, null for a single download
+         */
+        String getMissionId();
+
+        int getPriority();
+
+        boolean isCanceled();
+
+        /**
+         * A slot is held for the task, start it if {@link #isGranted(Task, long)} still holds.
+         * It must call {@link #release(Task, long)} when it ends.
+         *
+         * @param grant id of the grant
+         */
+        void onGranted(long grant);
+
+        /**
+         * The task's slot went to an urgent task, stop it without cancelling. It is queued again.
+         * May arrive before the {@link #onGranted(long)} of the same grant, which then must not start.
+         *
+         * @param grant id of the grant taken away
+         */
+        void onPreempted(long grant);
+    }
+
+    private static class Ticket {
+        final Task task;
+        final String host;
+        final Group group;
+        final long sequence;
+        int priority;
+        long round;
+        boolean running;
+        long grant;
+        long queued = System.nanoTime();  //since submitted or preempted
+
+        Ticket(Task task, String host, Group group, int priority, long sequence) {
+            this.task = task;
+            this.host = host;
+            this.group = group;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The queued and running tasks of one mission.
+     */
+    private static class Group {
+        final String key;
+        long nextRound;
+        int tickets;
+        int running;
+
+        Group(String key) {
+            this.key = key;
+        }
+    }
+}
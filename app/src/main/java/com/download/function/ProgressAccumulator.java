@@ -0,0 +1,70 @@
+package com.download.function;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloaded bytes of one range download, shared by all of its range workers.
+ * <p>
+ * Each worker adds to its own cell, cells sit on separate cache lines, so workers never
+ * contend. The total is the base plus a fixed number of cells, independent of how many
+ * ranges the record file holds.
+ */
+public class ProgressAccumulator {
+    private static final int MAX_STRIPES = 8;
+    private static final int PADDING = 8;  //8 longs = 64 bytes, one cache line per cell
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private final long base;
+    private final long totalSize;
+    private volatile int connections;
+    private volatile int targetConnections;
+
+    /**
+     * @param totalSize  file length
+     * @param downloaded bytes already downloaded before this session
+     * @param workers    number of range workers
+     */
+    public ProgressAccumulator(long totalSize, long downloaded, int workers) {
+        int stripes = 1;
+        while (stripes < workers && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+        this.base = downloaded;
+        this.totalSize = totalSize;
+    }
+
+    public void add(int worker, long delta) {
+        this.cells.addAndGet((worker & this.mask) * PADDING, delta);
+    }
+
+    public long downloaded() {
+        long sum = this.base;
+        for (int i = 0; i <= this.mask; i++) {
+            sum += this.cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public long totalSize() {
+        return this.totalSize;
+    }
+
+    public int connections() {
+        return this.connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int targetConnections() {
+        return this.targetConnections;
+    }
+
+    public void setTargetConnections(int targetConnections) {
+        this.targetConnections = targetConnections;
+    }
+}
@@ -0,0 +1,293 @@
+package com.download.function;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import static com.download.function.Constant.RECORD_FILE_DAMAGED;
+import static com.download.function.Constant.RECORD_FILE_MIGRATED;
+import static com.download.function.Utils.closeQuietly;
+import static com.download.function.Utils.formatStr;
+import static com.download.function.Utils.log;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+/**
+ * The .tmp record file of a range download, mapped once and shared by all range workers.
+ * <pre>
+ * |*************** Header (128 bytes) ***************|
+ * |  0  int    magic "RXDR"                           |
+ * |  4  int    version                                |
+ * |  8  int    segment count                          |
+ * | 12  int    CRC32 of the rest of the header        |
+ * | 16  long   total length                           |
+ * | 24  short  validator length                       |
+ * | 26  bytes  validator, ETag or Last-Modified       |
+ * |*************** Entry (24 bytes) *****************|
+ * |  0  long   start, next byte to download           |
+ * |  8  long   end, last byte of the segment          |
+ * | 16  int    CRC32 of start and end                 |
+ * | 20  int    reserved                               |
+ * |**************************************************|
+ * </pre>
+ * Version 1 files, a bare array of start/end pairs, are migrated to this format when opened.
+ */
+public class RecordFile implements Closeable {
+    static final int MAGIC = 0x52584452;  //RXDR
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 128;
+    static final int ENTRY_SIZE = 24;
+    private static final int V1_ENTRY_SIZE = 16;
+    private static final int MAX_VALIDATOR_SIZE = HEADER_SIZE - 26;
+    private static final String ACCESS = "rw";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {  //workers write entries concurrently
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    private final File file;
+    private RandomAccessFile record;
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int count;
+    private long totalLength;
+    private String validator;
+
+    private RecordFile(File file) throws IOException {
+        this.file = file;
+        this.record = new RandomAccessFile(file, ACCESS);
+        this.channel = this.record.getChannel();
+    }
+
+    /**
+     * Create a record file that splits fileLength into segments equal ranges.
+     *
+     * @param tempFile   record file
+     * @param fileLength total length
+     * @param validator  ETag or Last-Modified, may be empty
+     * @param segments   number of ranges
+     * @return record file, mapped
+     * @throws IOException
+     */
+    public static RecordFile create(File tempFile, long fileLength, String validator, int segments) throws IOException {
+        RecordFile recordFile = new RecordFile(tempFile);
+        try {
+            recordFile.record.setLength(0);
+            recordFile.init(fileLength, validator, segments);
+            long eachSize = fileLength / segments;
+            for (int i = 0; i < segments; i++) {
+                long start = i * eachSize;
+                long end = i == segments - 1 ? fileLength - 1 : (i + 1) * eachSize - 1;
+                recordFile.write(i, start, end);
+            }
+            return recordFile;
+        } catch (IOException e) {
+            recordFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open and verify a record file, migrating a version 1 file.
+     *
+     * @param tempFile record file
+     * @return record file, mapped
+     * @throws IOException if the file is damaged
+     */
+    public static RecordFile open(File tempFile) throws IOException {
+        RecordFile recordFile = new RecordFile(tempFile);
+        try {
+            long length = recordFile.record.length();
+            if (length >= HEADER_SIZE && recordFile.record.readInt() == MAGIC) {
+                recordFile.load(length);
+            } else {
+                recordFile.migrate(length);
+            }
+            return recordFile;
+        } catch (IOException e) {
+            recordFile.close();
+            throw e;
+        }
+    }
+
+    public int count() {
+        return this.count;
+    }
+
+    public long totalLength() {
+        return this.totalLength;
+    }
+
+    public String validator() {
+        return this.validator;
+    }
+
+    public long start(int index) {
+        return this.buffer.getLong(offset(index));
+    }
+
+    public long end(int index) {
+        return this.buffer.getLong(offset(index) + 8);
+    }
+
+    public void write(int index, long start, long end) {
+        MappedByteBuffer buffer = this.buffer;
+        int offset = offset(index);
+        buffer.putLong(offset, start);
+        buffer.putLong(offset + 8, end);
+        buffer.putInt(offset + 16, crc(start, end));
+    }
+
+    public void writeStart(int index, long start) {
+        this.write(index, start, this.end(index));
+    }
+
+    public void writeEnd(int index, long end) {
+        this.write(index, this.start(index), end);
+    }
+
+    /**
+     * Grow the file to hold at least count entries, new entries are empty.
+     *
+     * @param count entries
+     * @throws IOException
+     */
+    public synchronized void ensureCapacity(int count) throws IOException {
+        if (count <= this.count) {
+            return;
+        }
+        int oldCount = this.count;
+        this.map(count);
+        for (int i = oldCount; i < count; i++) {
+            this.write(i, 0, -1);
+        }
+        this.writeHeader();
+    }
+
+    public boolean complete() {
+        for (int i = 0; i < this.count; i++) {
+            if (this.start(i) <= this.end(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(this.channel);
+        closeQuietly(this.record);
+    }
+
+    private void init(long totalLength, String validator, int count) throws IOException {
+        this.totalLength = totalLength;
+        this.validator = validator == null ? "" : validator;
+        this.map(count);
+        this.writeHeader();
+    }
+
+    private void load(long length) throws IOException {
+        this.buffer = this.channel.map(READ_WRITE, 0, HEADER_SIZE);
+        int version = this.buffer.getInt(4);
+        int count = this.buffer.getInt(8);
+        if (version != VERSION || count < 0 || length < HEADER_SIZE + (long) count * ENTRY_SIZE
+                || this.buffer.getInt(12) != this.headerCrc()) {
+            throw this.damaged();
+        }
+        this.totalLength = this.buffer.getLong(16);
+        byte[] validator = new byte[Math.min(this.buffer.getShort(24), MAX_VALIDATOR_SIZE)];
+        for (int i = 0; i < validator.length; i++) {
+            validator[i] = this.buffer.get(26 + i);
+        }
+        this.validator = new String(validator, UTF_8);
+        this.map(count);
+        for (int i = 0; i < count; i++) {
+            if (this.buffer.getInt(offset(i) + 16) != crc(this.start(i), this.end(i))) {
+                throw this.damaged();
+            }
+        }
+    }
+
+    private void migrate(long length) throws IOException {
+        if (length == 0 || length % V1_ENTRY_SIZE != 0) {
+            throw this.damaged();
+        }
+        int count = (int) (length / V1_ENTRY_SIZE);
+        long[] entries = new long[count * 2];
+        MappedByteBuffer old = this.channel.map(READ_WRITE, 0, length);
+        long totalLength = 0;
+        for (int i = 0; i < entries.length; i += 2) {
+            entries[i] = old.getLong();
+            entries[i + 1] = old.getLong();
+            totalLength = Math.max(totalLength, entries[i + 1] + 1);
+        }
+        this.record.setLength(0);
+        this.init(totalLength, "", count);
+        for (int i = 0; i < count; i++) {
+            this.write(i, entries[i * 2], entries[i * 2 + 1]);
+        }
+        log(RECORD_FILE_MIGRATED, this.file.getName(), count);
+    }
+
+    private void map(int count) throws IOException {
+        long size = HEADER_SIZE + (long) count * ENTRY_SIZE;
+        if (this.record.length() < size) {
+            this.record.setLength(size);
+        }
+        this.buffer = this.channel.map(READ_WRITE, 0, size);
+        this.count = count;
+    }
+
+    private void writeHeader() {
+        byte[] validator = this.validator.getBytes(UTF_8);
+        int length = Math.min(validator.length, MAX_VALIDATOR_SIZE);
+        MappedByteBuffer buffer = this.buffer;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, this.count);
+        buffer.putLong(16, this.totalLength);
+        buffer.putShort(24, (short) length);
+        for (int i = 0; i < MAX_VALIDATOR_SIZE; i++) {
+            buffer.put(26 + i, i < length ? validator[i] : 0);
+        }
+        buffer.putInt(12, this.headerCrc());
+    }
+
+    private int headerCrc() {
+        CRC32 crc = CRC.get();
+        crc.reset();
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            if (i < 12 || i >= 16) {
+                crc.update(this.buffer.get(i));
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private IOException damaged() {
+        return new IOException(formatStr(RECORD_FILE_DAMAGED, this.file.getName()));
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    private static int crc(long start, long end) {
+        CRC32 crc = CRC.get();
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (start >>> shift));
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (end >>> shift));
+        }
+        return (int) crc.getValue();
+    }
+}
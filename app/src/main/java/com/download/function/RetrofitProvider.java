@@ -43,6 +43,7 @@ public class RetrofitProvider {
             OkHttpClient.Builder builder = new OkHttpClient().newBuilder();
             builder.readTimeout(10, TimeUnit.SECONDS);
             builder.connectTimeout(9, TimeUnit.SECONDS);
+            builder.eventListenerFactory(DownloadMetrics.listenerFactory());
 
             if (BuildConfig.DEBUG) {
                 builder.addInterceptor(new HttpLoggingInterceptor().setLevel(HttpLoggingInterceptor.Level.BODY));
@@ -0,0 +1,247 @@
+package com.download.function;
+
+import com.download.entity.DownloadRange;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.download.function.Constant.RANGE_SPLIT_HINT;
+import static com.download.function.Utils.log;
+
+/**
+ * Hands out the segments of a range download to its workers.
+ * <p>
+ * All workers share the one mapping of the {@link RecordFile}. A worker that finds no pending
+ * segment steals half of the largest remaining one, so no connection idles while the
+ * slowest range is still running. Near the end of the file ({@link #ENDGAME_SIZE}) the
+ * smallest split shrinks so that every connection keeps working until the last bytes.
+ * <p>
+ * Splitting appends entries to the record file, which therefore holds a variable number of segments.
+ * <p>
+ * A yield request never stops the last worker that was not asked to yield, the download always keeps
+ * one connection until its segments are done.
+ */
+public class SegmentScheduler {
+    private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+    private static final long ENDGAME_SIZE = 4 * 1024 * 1024;
+    private static final long ENDGAME_MIN_SPLIT_SIZE = 128 * 1024;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final AtomicInteger yieldRequests = new AtomicInteger(0);
+    private final AtomicInteger staying = new AtomicInteger(0);  //running workers not asked to yield
+    private final RecordFile recordFile;
+    private final long totalSize;
+
+    public SegmentScheduler(RecordFile recordFile) {
+        this.recordFile = recordFile;
+        this.totalSize = recordFile.totalLength();
+        for (int i = 0; i < recordFile.count(); i++) {
+            this.segments.add(new Segment(i, recordFile.start(i), recordFile.end(i)));
+        }
+    }
+
+    public long totalSize() {
+        return this.totalSize;
+    }
+
+    public synchronized long downloadedSize() {
+        return this.totalSize - this.residue();
+    }
+
+    /**
+     * End of the complete prefix of the file. Synchronized with {@link #acquire()}, so a split that is
+     * half done does not show a gap.
+     *
+     * @return number of bytes from the start of the file that are all committed
+     */
+    public synchronized long contiguous() {
+        long prefix = this.totalSize;
+        for (Segment each : this.segments) {
+            if (each.end >= each.start) {
+                prefix = Math.min(prefix, each.start);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Take a segment to download: a pending one if any, otherwise half of the largest running one.
+     *
+     * @return segment index, or -1 if there is nothing left to split
+     */
+    public synchronized int acquire() throws IOException {
+        for (Segment each : this.segments) {
+            if (!each.assigned && each.remaining() > 0) {
+                each.assigned = true;
+                return each.index;
+            }
+        }
+
+        Segment victim = null;
+        for (Segment each : this.segments) {
+            if (each.assigned && (victim == null || each.remaining() > victim.remaining())) {
+                victim = each;
+            }
+        }
+        long minSplit = this.residue() <= ENDGAME_SIZE ? ENDGAME_MIN_SPLIT_SIZE : MIN_SPLIT_SIZE;
+        if (victim == null || victim.remaining() < 2 * minSplit) {
+            return -1;
+        }
+
+        long end = victim.end;
+        long mid = victim.position + victim.remaining() / 2;
+        Segment stolen = this.obtainSlot();
+        stolen.start = mid;
+        stolen.position = mid;
+        stolen.end = end;
+        stolen.assigned = true;
+        this.recordFile.write(stolen.index, mid, end);  //new entry first, a crash in between only re-downloads bytes
+        synchronized (victim) {
+            victim.end = mid - 1;
+            this.recordFile.write(victim.index, victim.start, mid - 1);
+        }
+        log(RANGE_SPLIT_HINT, victim.index, mid, stolen.index, end);
+        return stolen.index;
+    }
+
+    public synchronized void release(int index) {
+        Segment segment = this.segments.get(index);
+        segment.assigned = false;
+        segment.position = segment.start;  //bytes read but not committed are read again
+    }
+
+    public synchronized DownloadRange range(int index) {
+        Segment segment = this.segments.get(index);
+        return new DownloadRange(segment.start, segment.end);
+    }
+
+    /**
+     * Current last byte of the segment, it moves backwards when another worker steals from it.
+     */
+    public long end(int index) {
+        return this.segments.get(index).end;
+    }
+
+    /**
+     * Bytes up to position have been read, splits never cut below it.
+     */
+    public void advance(int index, long position) {
+        this.segments.get(index).position = position;
+    }
+
+    /**
+     * Bytes up to position are in the save file, persist it.
+     */
+    public void commit(int index, long position) {
+        Segment segment = this.segments.get(index);
+        synchronized (segment) {  //an entry is written whole, its CRC covers start and end
+            segment.start = position;
+            this.recordFile.write(index, position, segment.end);
+        }
+    }
+
+    /**
+     * Ask that many running workers to stop after their next read, replacing earlier requests.
+     *
+     * @param count workers to stop, 0 cancels pending requests
+     */
+    public void requestYield(int count) {
+        this.yieldRequests.set(count);
+    }
+
+    /**
+     * Called by the worker of this segment on every read.
+     *
+     * @return true if the worker should stop, the rest of its segment stays pending
+     */
+    public boolean shouldYield(int index) {
+        int requests = this.yieldRequests.get();
+        if (requests <= 0) {
+            return false;
+        }
+        int staying = this.staying.get();
+        if (staying <= 1 || !this.staying.compareAndSet(staying, staying - 1)) {
+            return false;  //the last worker stays, a lost race is tried again on the next read
+        }
+        if (!this.yieldRequests.compareAndSet(requests, requests - 1)) {
+            this.staying.incrementAndGet();
+            return false;
+        }
+        this.segments.get(index).yielded = true;
+        return true;
+    }
+
+    /**
+     * A worker started.
+     */
+    public void addWorker() {
+        this.staying.incrementAndGet();
+    }
+
+    /**
+     * A worker exited that was not asked to yield. It counts against a pending yield request,
+     * so the request does not stop another worker later.
+     */
+    public void removeWorker() {
+        this.staying.decrementAndGet();
+        int requests = this.yieldRequests.get();
+        while (requests > 0 && !this.yieldRequests.compareAndSet(requests, requests - 1)) {
+            requests = this.yieldRequests.get();
+        }
+    }
+
+    /**
+     * Whether the worker of this segment stopped on request, clears the flag.
+     */
+    public synchronized boolean yielded(int index) {
+        Segment segment = this.segments.get(index);
+        boolean yielded = segment.yielded;
+        segment.yielded = false;
+        return yielded;
+    }
+
+    private long residue() {
+        long residue = 0;
+        for (Segment each : this.segments) {
+            residue += Math.max(0, each.end - each.start + 1);
+        }
+        return residue;
+    }
+
+    private Segment obtainSlot() throws IOException {
+        for (Segment each : this.segments) {
+            if (!each.assigned && each.remaining() <= 0) {
+                return each;
+            }
+        }
+        int index = this.segments.size();
+        if (index >= this.recordFile.count()) {
+            this.recordFile.ensureCapacity(Math.max(this.recordFile.count() * 2, index + 1));
+        }
+        Segment segment = new Segment(index, 0, -1);
+        this.segments.add(segment);
+        return segment;
+    }
+
+    private static class Segment {
+        final int index;
+        volatile long start;     //committed
+        volatile long position;  //read
+        volatile long end;
+        boolean assigned;
+        volatile boolean yielded;
+
+        Segment(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        long remaining() {
+            return this.end - this.position + 1;
+        }
+    }
+}
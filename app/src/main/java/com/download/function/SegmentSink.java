@@ -0,0 +1,363 @@
+package com.download.function;
+
+import com.download.entity.SinkType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.download.function.Utils.closeQuietly;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+/**
+ * Writes one download range sequentially into the save file, starting at a fixed position.
+ * <p>
+ * Bytes handed to {@link #write(byte[], int, int)} may be buffered; {@link #committed()}
+ * is the position up to which they have reached the file, and is what the record file may persist.
+ */
+public abstract class SegmentSink implements Closeable {
+    private static final String ACCESS = "rw";
+
+    protected final int type;
+    protected long position;    //next byte to accept
+    protected long committed;   //next byte not yet in the file
+
+    private long writeNanos;
+    private long writeBytes;
+
+    private SegmentSink(int type, long start) {
+        this.type = type;
+        this.position = start;
+        this.committed = start;
+    }
+
+    /**
+     * Open a sink for the range that begins at start.
+     *
+     * @param type     {@link SinkType}, AUTO is resolved by {@link SinkSelector}
+     * @param saveFile save file
+     * @param start    first byte of the range
+     * @return sink
+     * @throws IOException
+     */
+    public static SegmentSink open(int type, File saveFile, long start) throws IOException {
+        if (type == SinkType.AUTO) {
+            type = SinkSelector.select();
+        }
+        switch (type) {
+            case SinkType.MAPPED:
+                return new MappedSink(saveFile, start);
+            case SinkType.RANDOM_ACCESS:
+                return new RandomAccessSink(saveFile, start);
+            case SinkType.PIPELINED:
+                return new PipelinedSink(saveFile, start);
+            case SinkType.CHANNEL:
+            default:
+                return new ChannelSink(saveFile, start);
+        }
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        long begin = System.nanoTime();
+        this.doWrite(buffer, offset, length);
+        this.position += length;
+        this.writeNanos += System.nanoTime() - begin;
+        this.writeBytes += length;
+    }
+
+    public void flush() throws IOException {
+        long begin = System.nanoTime();
+        this.doFlush();
+        this.writeNanos += System.nanoTime() - begin;
+    }
+
+    public long committed() {
+        return this.committed;
+    }
+
+    public int type() {
+        return this.type;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            SinkSelector.report(this.type, this.writeBytes, this.writeNanos);
+            this.release();
+        }
+    }
+
+    protected abstract void doWrite(byte[] buffer, int offset, int length) throws IOException;
+
+    protected abstract void doFlush() throws IOException;
+
+    protected abstract void release();
+
+    /**
+     * Positional {@link FileChannel#write(ByteBuffer, long)} from a pooled direct buffer.
+     */
+    static class ChannelSink extends SegmentSink {
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+
+        ChannelSink(File saveFile, long start) throws IOException {
+            super(SinkType.CHANNEL, start);
+            this.file = new RandomAccessFile(saveFile, ACCESS);
+            this.channel = this.file.getChannel();
+            this.buffer = BufferPool.acquire();
+        }
+
+        @Override
+        protected void doWrite(byte[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, this.buffer.remaining());
+                this.buffer.put(src, offset, n);
+                offset += n;
+                length -= n;
+                if (!this.buffer.hasRemaining()) {
+                    this.doFlush();
+                }
+            }
+        }
+
+        @Override
+        protected void doFlush() throws IOException {
+            this.buffer.flip();
+            long begin = System.nanoTime();
+            while (this.buffer.hasRemaining()) {
+                this.committed += this.channel.write(this.buffer, this.committed);
+            }
+            DownloadMetrics.recordNanos(DownloadMetrics.DISK_WRITE, System.nanoTime() - begin);
+            this.buffer.clear();
+        }
+
+        @Override
+        protected void release() {
+            BufferPool.release(this.buffer);
+            this.buffer = null;
+            closeQuietly(this.channel);
+            closeQuietly(this.file);
+        }
+    }
+
+    /**
+     * Copies into a multi-megabyte mapping of the save file that slides forward as it fills.
+     */
+    static class MappedSink extends SegmentSink {
+        private static final long WINDOW_SIZE = 8 * 1024 * 1024;
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private MappedByteBuffer window;
+        private long fileLength;
+
+        MappedSink(File saveFile, long start) throws IOException {
+            super(SinkType.MAPPED, start);
+            this.file = new RandomAccessFile(saveFile, ACCESS);
+            this.channel = this.file.getChannel();
+            this.fileLength = this.file.length();
+        }
+
+        @Override
+        protected void doWrite(byte[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (this.window == null || !this.window.hasRemaining()) {
+                    this.slide();
+                }
+                int n = Math.min(length, this.window.remaining());
+                this.window.put(src, offset, n);
+                offset += n;
+                length -= n;
+                this.committed += n;
+            }
+        }
+
+        @Override
+        protected void doFlush() {
+            //Mapped pages belong to the page cache already.
+        }
+
+        @Override
+        protected void release() {
+            this.window = null;
+            closeQuietly(this.channel);
+            closeQuietly(this.file);
+        }
+
+        private void slide() throws IOException {
+            long size = Math.min(WINDOW_SIZE, this.fileLength - this.committed);
+            if (size <= 0) {
+                throw new IOException("Write beyond the end of file at " + this.committed);
+            }
+            this.window = this.channel.map(READ_WRITE, this.committed, size);
+        }
+    }
+
+    /**
+     * Fills pooled buffers and hands them to the {@link WritePipeline}, so the worker goes back
+     * to the socket while the shared writer thread does the disk write.
+     */
+    static class PipelinedSink extends SegmentSink implements WritePipeline.Target {
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long bufferStart;
+        private volatile long written;
+        private volatile IOException error;
+
+        PipelinedSink(File saveFile, long start) throws IOException {
+            super(SinkType.PIPELINED, start);
+            this.file = new RandomAccessFile(saveFile, ACCESS);
+            this.channel = this.file.getChannel();
+            this.buffer = BufferPool.acquire();
+            this.bufferStart = start;
+            this.written = start;
+        }
+
+        @Override
+        public long committed() {
+            return this.written;  //advanced by the writer thread
+        }
+
+        @Override
+        protected void doWrite(byte[] src, int offset, int length) throws IOException {
+            this.check();
+            while (length > 0) {
+                int n = Math.min(length, this.buffer.remaining());
+                this.buffer.put(src, offset, n);
+                offset += n;
+                length -= n;
+                if (!this.buffer.hasRemaining()) {
+                    this.submit();
+                }
+            }
+        }
+
+        /**
+         * Hand over the partial buffer and wait until the writer has written everything.
+         */
+        @Override
+        protected void doFlush() throws IOException {
+            if (this.buffer != null && this.buffer.position() > 0) {
+                this.submit();
+            }
+            synchronized (this) {
+                while (this.written < this.bufferStart && this.error == null) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            this.check();
+            this.committed = this.written;
+        }
+
+        @Override
+        protected void release() {
+            BufferPool.release(this.buffer);
+            this.buffer = null;
+            closeQuietly(this.channel);  //chunks still queued after a failure get ClosedChannelException and are dropped
+            closeQuietly(this.file);
+        }
+
+        @Override
+        public FileChannel channel() {
+            return this.channel;
+        }
+
+        @Override
+        public synchronized void onWritten(long bytes) {
+            this.written += bytes;
+            this.notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(IOException e) {
+            this.error = e;
+            this.notifyAll();
+        }
+
+        @Override
+        public IOException error() {
+            return this.error;
+        }
+
+        private void submit() throws IOException {
+            ByteBuffer full = this.buffer;
+            full.flip();
+            long position = this.bufferStart;
+            this.bufferStart += full.remaining();
+            this.buffer = BufferPool.acquire();
+            try {
+                WritePipeline.submit(this, position, full);
+            } catch (InterruptedIOException e) {
+                this.onError(e);  //the chunk never reached the ring, flush must not wait for it
+                throw e;
+            }
+        }
+
+        private void check() throws IOException {
+            IOException error = this.error;
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Buffered {@link RandomAccessFile} seeked once to the range start.
+     */
+    static class RandomAccessSink extends SegmentSink {
+        private RandomAccessFile file;
+        private byte[] buffer;
+        private int count;
+
+        RandomAccessSink(File saveFile, long start) throws IOException {
+            super(SinkType.RANDOM_ACCESS, start);
+            this.file = new RandomAccessFile(saveFile, ACCESS);
+            this.file.seek(start);
+            this.buffer = new byte[BufferPool.BUFFER_SIZE];
+        }
+
+        @Override
+        protected void doWrite(byte[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, this.buffer.length - this.count);
+                System.arraycopy(src, offset, this.buffer, this.count, n);
+                this.count += n;
+                offset += n;
+                length -= n;
+                if (this.count == this.buffer.length) {
+                    this.doFlush();
+                }
+            }
+        }
+
+        @Override
+        protected void doFlush() throws IOException {
+            if (this.count > 0) {
+                long begin = System.nanoTime();
+                this.file.write(this.buffer, 0, this.count);
+                DownloadMetrics.recordNanos(DownloadMetrics.DISK_WRITE, System.nanoTime() - begin);
+                this.committed += this.count;
+                this.count = 0;
+            }
+        }
+
+        @Override
+        protected void release() {
+            this.buffer = null;
+            closeQuietly(this.file);
+        }
+    }
+}
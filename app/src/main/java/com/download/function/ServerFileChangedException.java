@@ -0,0 +1,18 @@
+package com.download.function;
+
+import java.io.IOException;
+
+import static com.download.function.Constant.SERVER_FILE_CHANGED;
+import static com.download.function.Utils.formatStr;
+
+/**
+ * A 206 response whose validators differ from the probed ones, its bytes belong to a changed file.
+ * Also a 416 to a resume whose total is not the length of the file.
+ * Not retried, the download throws its files away and starts once more from a fresh probe.
+ */
+public class ServerFileChangedException extends IOException {
+
+    public ServerFileChangedException(String url) {
+        super(formatStr(SERVER_FILE_CHANGED, url));
+    }
+}
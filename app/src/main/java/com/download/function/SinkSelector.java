@@ -0,0 +1,71 @@
+package com.download.function;
+
+import com.download.entity.SinkType;
+
+import static com.download.function.Constant.SINK_THROUGHPUT_HINT;
+import static com.download.function.Utils.log;
+
+/**
+ * Resolves {@link SinkType#AUTO} to the sink with the best measured write throughput.
+ * <p>
+ * Every sink reports its bytes and time spent writing when it closes. Sinks without enough
+ * samples are tried first, and every {@link #REPROBE_INTERVAL} selections another sink is
+ * re-measured so the choice follows the device's storage.
+ * <p>
+ * The time is what the worker spends handing bytes to the sink. For CHANNEL and RANDOM_ACCESS that
+ * includes a write call per buffer, for MAPPED it is a copy into the page cache whose writeback comes
+ * later, for PIPELINED the writer thread does the write. The measure therefore favours the last two,
+ * which is why AUTO is opt-in and the default sink is CHANNEL.
+ */
+public class SinkSelector {
+    private static final int[] CANDIDATES = {SinkType.CHANNEL, SinkType.MAPPED, SinkType.RANDOM_ACCESS,
+            SinkType.PIPELINED};
+    private static final long MIN_SAMPLE_BYTES = 1024 * 1024;
+    private static final int REPROBE_INTERVAL = 32;
+    private static final double ALPHA = 0.3;
+
+    private static final double[] throughput = new double[CANDIDATES.length];  //bytes per nanosecond
+    private static int selections = 0;
+
+    private SinkSelector() {
+    }
+
+    public static synchronized int select() {
+        selections++;
+        int best = 0;
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            if (throughput[i] == 0) {
+                return CANDIDATES[i];
+            }
+            if (throughput[i] > throughput[best]) {
+                best = i;
+            }
+        }
+        if (selections % REPROBE_INTERVAL == 0) {
+            return CANDIDATES[(best + 1 + selections / REPROBE_INTERVAL % (CANDIDATES.length - 1)) % CANDIDATES.length];
+        }
+        return CANDIDATES[best];
+    }
+
+    static synchronized void report(int type, long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        int index = indexOf(type);
+        if (index < 0) {
+            return;
+        }
+        double sample = (double) bytes / nanos;
+        throughput[index] = throughput[index] == 0 ? sample : ALPHA * sample + (1 - ALPHA) * throughput[index];
+        log(SINK_THROUGHPUT_HINT, type, throughput[index] * 1000);
+    }
+
+    private static int indexOf(int type) {
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            if (CANDIDATES[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,202 @@
+package com.download.function;
+
+import android.util.Base64;
+
+import com.download.entity.DigestType;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import static com.download.function.Utils.empty;
+
+/**
+ * Digest of a file computed while its bytes stream through, checked against an expected value.
+ * <p>
+ * The expected value comes from {@link com.download.entity.DownloadBean} or from the
+ * Digest / Content-MD5 response headers. One instance hashes one pass over the file,
+ * {@link #fresh()} starts a new pass.
+ */
+public abstract class StreamDigest {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int type;
+    private final String expected;
+
+    StreamDigest(int type, String expected) {
+        this.type = type;
+        this.expected = expected.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param type     {@link DigestType}
+     * @param expected expected digest in hex
+     * @return digest, or null if there is nothing to verify
+     */
+    public static StreamDigest create(int type, String expected) {
+        if (empty(expected)) {
+            return null;
+        }
+        switch (type) {
+            case DigestType.SHA256:
+                return new MessageDigestStream(type, expected, "SHA-256");
+            case DigestType.MD5:
+                return new MessageDigestStream(type, expected, "MD5");
+            case DigestType.CRC32C:
+                return new Crc32cStream(type, expected);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parse the expected digest from the response headers, the strongest algorithm wins.
+     *
+     * @param digest     Digest header, e.g. "sha-256=X48E9q...=,md5=..."
+     * @param contentMd5 Content-MD5 header
+     * @return digest, or null if the server sent none we support
+     */
+    public static StreamDigest fromHeaders(String digest, String contentMd5) {
+        int bestType = DigestType.NONE;
+        String best = null;
+        if (!empty(digest)) {
+            for (String each : digest.split(",")) {
+                int split = each.indexOf('=');
+                if (split <= 0) {
+                    continue;
+                }
+                int type = typeOf(each.substring(0, split).trim());
+                String value = decode(each.substring(split + 1).trim());
+                if (type != DigestType.NONE && value != null && (bestType == DigestType.NONE || type < bestType)) {
+                    bestType = type;
+                    best = value;
+                }
+            }
+        }
+        if (best == null && !empty(contentMd5)) {
+            best = decode(contentMd5.trim());
+            bestType = DigestType.MD5;
+        }
+        return create(bestType, best);
+    }
+
+    public int type() {
+        return this.type;
+    }
+
+    /**
+     * A new digest with the same algorithm and expected value.
+     */
+    public StreamDigest fresh() {
+        return create(this.type, this.expected);
+    }
+
+    public abstract void update(byte[] buffer, int offset, int length);
+
+    /**
+     * Check the bytes seen so far against the expected value.
+     *
+     * @param name file name, for the message
+     * @throws DigestMismatchException if they differ
+     */
+    public void verify(String name) throws DigestMismatchException {
+        String actual = hex(this.result());
+        if (!actual.equals(this.expected)) {
+            throw new DigestMismatchException(name, this.expected, actual);
+        }
+    }
+
+    protected abstract byte[] result();
+
+    private static int typeOf(String algorithm) {
+        if ("sha-256".equalsIgnoreCase(algorithm)) {
+            return DigestType.SHA256;
+        } else if ("md5".equalsIgnoreCase(algorithm)) {
+            return DigestType.MD5;
+        } else if ("crc32c".equalsIgnoreCase(algorithm)) {
+            return DigestType.CRC32C;
+        }
+        return DigestType.NONE;
+    }
+
+    private static String decode(String base64) {
+        if (base64.length() > 1 && base64.startsWith(":") && base64.endsWith(":")) {
+            base64 = base64.substring(1, base64.length() - 1);  //structured field byte sequence
+        }
+        try {
+            return hex(Base64.decode(base64, Base64.DEFAULT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static class MessageDigestStream extends StreamDigest {
+        private final MessageDigest digest;
+
+        MessageDigestStream(int type, String expected, String algorithm) {
+            super(type, expected);
+            try {
+                this.digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);  //SHA-256 and MD5 are always present
+            }
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            this.digest.update(buffer, offset, length);
+        }
+
+        @Override
+        protected byte[] result() {
+            return this.digest.digest();
+        }
+    }
+
+    /**
+     * java.util.zip.CRC32C needs API 26, so the table is computed here.
+     */
+    private static class Crc32cStream extends StreamDigest {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? 0x82F63B78 ^ (c >>> 1) : c >>> 1;
+                }
+                TABLE[n] = c;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        Crc32cStream(int type, String expected) {
+            super(type, expected);
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            int crc = this.crc;
+            for (int i = offset; i < offset + length; i++) {
+                crc = TABLE[(crc ^ buffer[i]) & 0xFF] ^ (crc >>> 8);
+            }
+            this.crc = crc;
+        }
+
+        @Override
+        protected byte[] result() {
+            int value = ~this.crc;
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+}
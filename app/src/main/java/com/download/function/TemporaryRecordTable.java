@@ -3,21 +3,29 @@ package com.download.function;
 import com.download.db.DataBaseHelper;
 import com.download.entity.DownloadType;
 import com.download.entity.TemporaryRecord;
+import com.download.entity.UrlMetadata;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
 
+import okhttp3.ResponseBody;
 import retrofit2.Response;
 
 import static com.download.function.Constant.DOWNLOAD_RECORD_FILE_DAMAGED;
+import static com.download.function.Utils.GMTToLong;
 import static com.download.function.Utils.contentLength;
+import static com.download.function.Utils.contentMD5;
+import static com.download.function.Utils.digest;
+import static com.download.function.Utils.eTag;
 import static com.download.function.Utils.empty;
 import static com.download.function.Utils.fileName;
 import static com.download.function.Utils.lastModify;
 import static com.download.function.Utils.log;
 import static com.download.function.Utils.notSupportRange;
+import static com.download.function.Utils.rangeTotal;
 
 public class TemporaryRecordTable {
     private Map<String, TemporaryRecord> map;
@@ -35,7 +43,10 @@ public class TemporaryRecordTable {
     }
 
     public void delete(String url) {
-        this.map.remove(url);
+        TemporaryRecord record = this.map.remove(url);
+        if (record != null) {
+            record.discardProbe();
+        }
     }
 
     /**
@@ -46,13 +57,32 @@ public class TemporaryRecordTable {
      */
     public void saveFileInfo(String url, Response<?> response) {
         TemporaryRecord record = this.map.get(url);
+        UrlMetadata metadata = record.getMetadata();
+        metadata.setFileName(fileName(url, response));
+        metadata.setContentLength(contentLength(response));
+        metadata.setLastModify(lastModify(response));
+        metadata.setETag(eTag(response));
+        metadata.setDigest(digest(response));
+        metadata.setContentMd5(contentMD5(response));
+        metadata.setProbeTime(System.currentTimeMillis());
+        this.applyMetadata(record, metadata);
+    }
 
-        if (empty(record.getSaveName())) {
-            record.setSaveName(fileName(url, response));
-        }
+    /**
+     * Save file info and range info from the metadata cache, instead of probing.
+     *
+     * @param url      key
+     * @param metadata cached metadata
+     */
+    public void saveCachedInfo(String url, UrlMetadata metadata) {
+        TemporaryRecord record = this.map.get(url);
+        record.setMetadata(metadata);
+        this.applyMetadata(record, metadata);
+        record.setRangeSupport(metadata.isRangeSupport());
+    }
 
-        record.setContentLength(contentLength(response));
-        record.setLastModify(lastModify(response));
+    public UrlMetadata getMetadata(String url) {
+        return this.map.get(url).getMetadata();
     }
 
     /**
@@ -62,7 +92,42 @@ public class TemporaryRecordTable {
      * @param response response
      */
     public void saveRangeInfo(String url, Response<?> response) {
-        this.map.get(url).setRangeSupport(!notSupportRange(response));
+        TemporaryRecord record = this.map.get(url);
+        record.getMetadata().setRangeSupport(!notSupportRange(response));
+        record.setRangeSupport(!notSupportRange(response));
+    }
+
+    /**
+     * Save file info, range info and the response itself from a ranged GET probe.
+     *
+     * @param url      key
+     * @param response response of "Range: bytes=0-", its body is kept for the download
+     */
+    public void saveProbeInfo(String url, Response<ResponseBody> response) {
+        TemporaryRecord record = this.map.get(url);
+        this.saveFileInfo(url, response);
+        this.saveRangeInfo(url, response);
+        long total = rangeTotal(response);
+        if (response.code() == 206 && total > 0) {
+            record.getMetadata().setContentLength(total);  //Content-Length is the part the server chose to send
+            record.setContentLength(total);
+        }
+        record.setProbe(response);
+    }
+
+    /**
+     * Save file state without a request: changed unless the probed Last-Modified equals the one saved with the file.
+     *
+     * @param url key
+     */
+    public void saveFileState(String url) {
+        TemporaryRecord record = this.map.get(url);
+        String saved = this.readLastModify(url);
+        try {
+            record.setFileChanged(empty(saved) || GMTToLong(saved) != GMTToLong(record.getLastModify()));
+        } catch (ParseException e) {
+            record.setFileChanged(true);
+        }
     }
 
     /**
@@ -70,13 +135,17 @@ public class TemporaryRecordTable {
      *
      * @param url             url
      * @param maxThreads      max threads
+     * @param adaptiveThreads adapt range connections to bandwidth
      * @param maxRetryCount   retry count
      * @param defaultSavePath default save path
+     * @param defaultSinkType default sink type
      * @param downloadApi     api
      * @param dataBaseHelper  DataBaseHelper
      */
-    public void init(String url, int maxThreads, int maxRetryCount, String defaultSavePath, DownloadApi downloadApi, DataBaseHelper dataBaseHelper) {
-        this.map.get(url).init(maxThreads, maxRetryCount, defaultSavePath, downloadApi, dataBaseHelper);
+    public void init(String url, int maxThreads, boolean adaptiveThreads, int maxRetryCount, String defaultSavePath,
+                     int defaultSinkType, DownloadApi downloadApi, DataBaseHelper dataBaseHelper) {
+        this.map.get(url).init(maxThreads, adaptiveThreads, maxRetryCount, defaultSavePath, defaultSinkType,
+                downloadApi, dataBaseHelper);
     }
 
     /**
@@ -145,6 +214,16 @@ public class TemporaryRecordTable {
         return this.map.get(url).getFiles();
     }
 
+    private void applyMetadata(TemporaryRecord record, UrlMetadata metadata) {
+        if (empty(record.getSaveName())) {
+            record.setSaveName(metadata.getFileName());
+        }
+        record.setContentLength(metadata.getContentLength());
+        record.setLastModify(metadata.getLastModify());
+        record.setETag(metadata.getETag());
+        record.setDigestHeaders(metadata.getDigest(), metadata.getContentMd5());
+    }
+
     private boolean supportRange(String url) {
         return this.map.get(url).isSupportRange();
     }
@@ -187,7 +266,7 @@ public class TemporaryRecordTable {
 
     private DownloadType notSupportRangeType(String url) {
         if (this.normalDownloadNotComplete(url)) {
-            return new DownloadType.NormalDownload(this.map.get(url));
+            return new DownloadType.ContinueNormalDownload(this.map.get(url));
         } else {
             return new DownloadType.AlreadyDownloaded(this.map.get(url));
         }
@@ -0,0 +1,90 @@
+package com.download.function;
+
+import com.download.entity.DownloadStatus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of one download, fed by its read loops.
+ * <p>
+ * Reads only note the time, once per window the read that is due first turns the bytes of the window
+ * into the instantaneous rate and folds it into a moving average that forgets with a time constant of
+ * {@link #TAU_NANOS}, so uneven windows weigh by their length. All range workers of a download feed
+ * the same meter. Nothing is allocated per read, the status the loop emits is filled in place.
+ */
+public class ThroughputMeter {
+    private static final long WINDOW_NANOS = 250_000_000L;
+    private static final long STALE_NANOS = 4 * WINDOW_NANOS;
+    private static final double TAU_NANOS = 2e9;
+
+    private final AtomicLong nextRoll = new AtomicLong();
+    private volatile long windowStart;
+    private volatile long windowDownloaded;
+    private volatile long lastByte;
+    private volatile long instant;
+    private volatile long smoothed;
+
+    /**
+     * Start measuring, before the first read.
+     *
+     * @param downloaded bytes the download already has
+     */
+    public void start(long downloaded) {
+        long now = System.nanoTime();
+        this.windowStart = now;
+        this.windowDownloaded = downloaded;
+        this.lastByte = now;
+        this.instant = 0;
+        this.smoothed = 0;
+        this.nextRoll.set(now + WINDOW_NANOS);
+    }
+
+    /**
+     * Count a read and fill the rates into the status, which must hold the sizes already.
+     *
+     * @param status status about to be emitted
+     */
+    public void update(DownloadStatus status) {
+        long now = System.nanoTime();
+        this.lastByte = now;
+        long next = this.nextRoll.get();
+        if (now - next >= 0 && this.nextRoll.compareAndSet(next, now + WINDOW_NANOS)) {
+            this.roll(now, status.getDownloadSize());
+        }
+        long smoothed = this.smoothed;
+        status.setBytesPerSecond(smoothed);
+        status.setInstantBytesPerSecond(this.instant);
+        status.setLastByteMillis(now / 1000_000L);
+        long remaining = status.getTotalSize() - status.getDownloadSize();
+        status.setEtaMillis(!status.isChunked && smoothed > 0 && remaining >= 0 ? remaining * 1000 / smoothed : -1);
+    }
+
+    private void roll(long now, long downloaded) {
+        long elapsed = now - this.windowStart;
+        double rate = Math.max(0, downloaded - this.windowDownloaded) * 1e9 / Math.max(1, elapsed);
+        long smoothed = this.smoothed;
+        this.instant = (long) rate;
+        this.smoothed = smoothed == 0 ? (long) rate
+                : (long) (smoothed + (1 - Math.exp(-elapsed / TAU_NANOS)) * (rate - smoothed));
+        this.windowStart = now;
+        this.windowDownloaded = downloaded;
+    }
+
+    /**
+     * @return moving average in bytes per second
+     */
+    public long bytesPerSecond() {
+        return this.smoothed;
+    }
+
+    /**
+     * @return rate of the last window in bytes per second, 0 if nothing was read for a while
+     */
+    public long instantBytesPerSecond() {
+        return System.nanoTime() - this.lastByte > STALE_NANOS ? 0 : this.instant;
+    }
+
+    public long millisSinceLastByte() {
+        return (System.nanoTime() - this.lastByte) / 1000_000L;
+    }
+}
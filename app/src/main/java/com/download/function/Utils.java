@@ -3,8 +3,6 @@ package com.download.function;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.download.entity.DownloadEvent;
-
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
@@ -18,15 +16,12 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.reactivex.FlowableTransformer;
 import io.reactivex.ObservableTransformer;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.processors.BehaviorProcessor;
-import io.reactivex.processors.FlowableProcessor;
 import retrofit2.HttpException;
 import retrofit2.Response;
 
@@ -128,14 +123,6 @@ public class Utils {
         }
     }
 
-    public static FlowableProcessor<DownloadEvent> createProcessor(String missionId, Map<String, FlowableProcessor<DownloadEvent>> processorMap) {
-        if (processorMap.get(missionId) == null) {
-            FlowableProcessor<DownloadEvent> processor = BehaviorProcessor.<DownloadEvent>create().toSerialized();
-            processorMap.put(missionId, processor);
-        }
-        return processorMap.get(missionId);
-    }
-
     public static <U> ObservableTransformer<U, U> retry(final String hint, final int retryCount) {
         return upstream -> upstream.retry((io.reactivex.functions.BiPredicate<? super Integer, ? super Throwable>) (integer, throwable) -> retry(hint, retryCount, integer, throwable));
     }
@@ -154,6 +141,18 @@ public class Utils {
         return response.headers().get("Last-Modified");
     }
 
+    public static String eTag(Response<?> response) {
+        return response.headers().get("ETag");
+    }
+
+    public static String digest(Response<?> response) {
+        return response.headers().get("Digest");
+    }
+
+    public static String contentMD5(Response<?> response) {
+        return response.headers().get("Content-MD5");
+    }
+
     public static long contentLength(Response<?> response) {
         try {
             return Long.parseLong(response.headers().get(("Content-Length")));
@@ -190,6 +189,36 @@ public class Utils {
         }
     }
 
+    /**
+     * First byte of a 206 response, from "Content-Range: bytes start-end/total".
+     *
+     * @param response response
+     * @return start, -1 if absent
+     */
+    public static long rangeStart(Response<?> response) {
+        String range = contentRange(response);
+        if (empty(range)) {
+            return -1;
+        }
+        Matcher m = Pattern.compile("bytes\\s+(\\d+)-").matcher(range);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    /**
+     * Total length of a 206 response, from "Content-Range: bytes start-end/total".
+     *
+     * @param response response
+     * @return total, -1 if absent or unknown
+     */
+    public static long rangeTotal(Response<?> response) {
+        String range = contentRange(response);
+        if (empty(range)) {
+            return -1;
+        }
+        Matcher m = Pattern.compile("/(\\d+)").matcher(range);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
     public static boolean isChunked(Response<?> response) {
         return "chunked".equals(transferEncoding(response));
     }
@@ -229,46 +258,31 @@ public class Utils {
 
     public static Boolean retry(String hint, int maxRetryCount, Integer integer, Throwable throwable) {
         if (throwable instanceof ProtocolException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "ProtocolException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "ProtocolException", maxRetryCount, integer);
         } else if (throwable instanceof UnknownHostException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "UnknownHostException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "UnknownHostException", maxRetryCount, integer);
         } else if (throwable instanceof HttpException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "HttpException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "HttpException", maxRetryCount, integer);
         } else if (throwable instanceof SocketTimeoutException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "SocketTimeoutException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "SocketTimeoutException", maxRetryCount, integer);
         } else if (throwable instanceof ConnectException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "ConnectException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "ConnectException", maxRetryCount, integer);
         } else if (throwable instanceof SocketException) {
-            if (integer < maxRetryCount + 1) {
-                log(RETRY_HINT, hint, "SocketException", integer);
-                return true;
-            }
-            return false;
+            return retry(hint, "SocketException", maxRetryCount, integer);
         } else {
             return false;
         }
     }
 
+    private static boolean retry(String hint, String type, int maxRetryCount, int integer) {
+        if (integer < maxRetryCount + 1) {
+            log(RETRY_HINT, hint, type, integer);
+            DownloadMetrics.retry(type);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * return file paths
      *
@@ -0,0 +1,216 @@
+package com.download.function;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.download.function.Constant.WRITE_PIPELINE_STALL_HINT;
+import static com.download.function.Utils.log;
+
+/**
+ * Moves disk writes off the network threads.
+ * <p>
+ * Range workers hand filled {@link BufferPool} buffers to a bounded ring and go back to reading
+ * the socket. One writer thread drains the ring, groups the buffers by file, and writes each
+ * contiguous run with a single gathering write. When the ring is full the worker blocks,
+ * which is the backpressure: the network never runs more than {@link #RING_SIZE} buffers
+ * ahead of the disk. {@link #metrics()} shows how often that happens.
+ */
+public class WritePipeline {
+    public static final int RING_SIZE = 64;  //64 * 64 KB = 4 MB in flight
+    private static final int MAX_BATCH = RING_SIZE;
+    private static final int MAX_GATHER = 16;  //buffers per write call, 1 MB
+    private static final long STALL_HINT_NANOS = 100 * 1000 * 1000L;
+
+    private static final BlockingQueue<Chunk> ring = new ArrayBlockingQueue<>(RING_SIZE);
+    private static final AtomicLong chunks = new AtomicLong();
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+    private static final AtomicLong stalls = new AtomicLong();
+    private static final AtomicLong stallNanos = new AtomicLong();
+    private static volatile int peakDepth;
+    private static Thread writer;
+
+    private WritePipeline() {
+    }
+
+    /**
+     * Queue buffer to be written at position, blocks while the ring is full.
+     *
+     * @param target   file the buffer belongs to
+     * @param position file position of the buffer's first byte
+     * @param buffer   flipped pooled buffer, owned by the pipeline from now on
+     * @throws InterruptedIOException if interrupted while waiting for space
+     */
+    static void submit(Target target, long position, ByteBuffer buffer) throws InterruptedIOException {
+        ensureWriter();
+        Chunk chunk = new Chunk(target, position, buffer);
+        try {
+            if (!ring.offer(chunk)) {
+                long begin = System.nanoTime();
+                ring.put(chunk);
+                long stalled = System.nanoTime() - begin;
+                stalls.incrementAndGet();
+                stallNanos.addAndGet(stalled);
+                if (stalled > STALL_HINT_NANOS) {
+                    log(WRITE_PIPELINE_STALL_HINT, stalled / 1000000, RING_SIZE);
+                }
+            }
+        } catch (InterruptedException e) {
+            BufferPool.release(buffer);
+            throw new InterruptedIOException();
+        }
+        int depth = ring.size();
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+        chunks.incrementAndGet();
+    }
+
+    public static Metrics metrics() {
+        return new Metrics(ring.size(), RING_SIZE, peakDepth, stalls.get(), stallNanos.get() / 1000000,
+                chunks.get(), writes.get(), bytes.get());
+    }
+
+    private static synchronized void ensureWriter() {
+        if (writer == null) {
+            writer = new Thread(WritePipeline::drain, "RxDownload-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static void drain() {
+        List<Chunk> batch = new ArrayList<>(MAX_BATCH);
+        Map<Target, List<Chunk>> byTarget = new LinkedHashMap<>();
+        while (true) {
+            try {
+                batch.add(ring.take());
+            } catch (InterruptedException e) {
+                continue;  //the writer lives as long as the process
+            }
+            ring.drainTo(batch, MAX_BATCH - 1);
+            for (Chunk each : batch) {
+                List<Chunk> list = byTarget.get(each.target);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byTarget.put(each.target, list);
+                }
+                list.add(each);
+            }
+            for (Map.Entry<Target, List<Chunk>> each : byTarget.entrySet()) {
+                write(each.getKey(), each.getValue());
+            }
+            batch.clear();
+            byTarget.clear();
+        }
+    }
+
+    /**
+     * Write one file's chunks in order, contiguous ones together.
+     */
+    private static void write(Target target, List<Chunk> list) {
+        int from = 0;
+        while (from < list.size()) {
+            int to = from + 1;
+            long end = list.get(from).position + list.get(from).buffer.remaining();
+            while (to < list.size() && to - from < MAX_GATHER && list.get(to).position == end) {
+                end += list.get(to).buffer.remaining();
+                to++;
+            }
+            List<Chunk> run = list.subList(from, to);
+            try {
+                if (target.error() == null) {
+                    long written = gather(target.channel(), run);
+                    target.onWritten(written);
+                }
+            } catch (IOException e) {
+                target.onError(e);
+            } finally {
+                for (Chunk each : run) {
+                    BufferPool.release(each.buffer);
+                }
+            }
+            from = to;
+        }
+    }
+
+    private static long gather(FileChannel channel, List<Chunk> run) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = run.get(i).buffer;
+            total += buffers[i].remaining();
+        }
+        long begin = System.nanoTime();
+        channel.position(run.get(0).position);
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+        }
+        DownloadMetrics.recordNanos(DownloadMetrics.DISK_WRITE, System.nanoTime() - begin);
+        writes.incrementAndGet();
+        bytes.addAndGet(total);
+        return total;
+    }
+
+    /**
+     * A file written through the pipeline. Only the writer thread touches its channel.
+     */
+    interface Target {
+        FileChannel channel();
+
+        void onWritten(long bytes);
+
+        void onError(IOException e);
+
+        IOException error();
+    }
+
+    private static class Chunk {
+        final Target target;
+        final long position;
+        final ByteBuffer buffer;
+
+        Chunk(Target target, long position, ByteBuffer buffer) {
+            this.target = target;
+            this.position = position;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Snapshot of the pipeline. Many stalls with the depth at capacity means the disk is the bottleneck;
+     * chunks / writes is how many buffers each write call coalesced.
+     */
+    public static class Metrics {
+        public final int depth;
+        public final int capacity;
+        public final int peakDepth;
+        public final long stalls;
+        public final long stallMillis;
+        public final long chunks;
+        public final long writes;
+        public final long bytes;
+
+        Metrics(int depth, int capacity, int peakDepth, long stalls, long stallMillis,
+                long chunks, long writes, long bytes) {
+            this.depth = depth;
+            this.capacity = capacity;
+            this.peakDepth = peakDepth;
+            this.stalls = stalls;
+            this.stallMillis = stallMillis;
+            this.chunks = chunks;
+            this.writes = writes;
+            this.bytes = bytes;
+        }
+    }
+}
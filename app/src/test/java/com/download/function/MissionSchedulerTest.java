@@ -0,0 +1,146 @@
+package com.download.function;
+
+import com.download.entity.DownloadPriority;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MissionSchedulerTest {
+
+    /**
+     * The preemption of a grant reaches the task before the grant itself, as when two threads
+     * run the scheduler's callbacks. The late grant must not start, the next one must.
+     */
+    @Test
+    public void grantPreemptedBeforeItRunsDoesNotStart() {
+        MissionScheduler scheduler = new MissionScheduler(1);
+        FakeTask normal = new FakeTask(scheduler, "http://a.example.com/x", DownloadPriority.NORMAL);
+        FakeTask urgent = new FakeTask(scheduler, "http://b.example.com/y", DownloadPriority.URGENT);
+        normal.deferGrants = true;
+
+        scheduler.submit(normal);
+        assertEquals(1, normal.granted.size());
+        long first = normal.granted.get(0);
+
+        scheduler.submit(urgent);
+        assertEquals(1, normal.preempted.size());
+        assertEquals(first, (long) normal.preempted.get(0));
+        assertEquals(1, urgent.started);
+
+        normal.runDeferredGrants();
+        assertEquals(0, normal.started);
+        assertFalse(scheduler.isGranted(normal, first));
+        assertEquals(1, scheduler.running());
+
+        normal.deferGrants = false;
+        urgent.finish();
+        assertEquals(1, normal.started);
+        assertEquals(1, scheduler.running());
+        assertEquals(0, scheduler.waiting());
+    }
+
+    /**
+     * The old run of a preempted task ends after the task was granted again, its release must not
+     * free the new grant's slot.
+     */
+    @Test
+    public void releaseOfOldGrantKeepsNewSlot() {
+        MissionScheduler scheduler = new MissionScheduler(1);
+        FakeTask normal = new FakeTask(scheduler, "http://a.example.com/x", DownloadPriority.NORMAL);
+        FakeTask urgent = new FakeTask(scheduler, "http://b.example.com/y", DownloadPriority.URGENT);
+        FakeTask other = new FakeTask(scheduler, "http://c.example.com/z", DownloadPriority.NORMAL);
+
+        scheduler.submit(normal);
+        long first = normal.current;
+        scheduler.submit(urgent);
+        scheduler.submit(other);
+        urgent.finish();
+        assertTrue(scheduler.isGranted(normal, normal.current));
+
+        scheduler.release(normal, first);
+        assertTrue(scheduler.isGranted(normal, normal.current));
+        assertEquals(1, scheduler.running());
+        assertEquals(0, other.started);
+    }
+
+    private static class FakeTask implements MissionScheduler.Task {
+        final MissionScheduler scheduler;
+        final String url;
+        final int priority;
+        final List<Long> granted = new ArrayList<>();
+        final List<Long> preempted = new ArrayList<>();
+        final List<Long> deferred = new ArrayList<>();
+        boolean deferGrants;
+        int started;
+        long current = -1;
+
+        FakeTask(MissionScheduler scheduler, String url, int priority) {
+            this.scheduler = scheduler;
+            this.url = url;
+            this.priority = priority;
+        }
+
+        @Override
+        public String getUrl() {
+            return this.url;
+        }
+
+        @Override
+        public String getMissionId() {
+            return null;
+        }
+
+        @Override
+        public int getPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void onGranted(long grant) {
+            this.granted.add(grant);
+            if (this.deferGrants) {
+                this.deferred.add(grant);
+            } else {
+                this.start(grant);
+            }
+        }
+
+        @Override
+        public void onPreempted(long grant) {
+            this.preempted.add(grant);
+            if (grant == this.current) {
+                this.current = -1;
+            }
+        }
+
+        void runDeferredGrants() {
+            for (long each : this.deferred) {
+                this.start(each);
+            }
+            this.deferred.clear();
+        }
+
+        void finish() {
+            this.scheduler.release(this, this.current);
+            this.current = -1;
+        }
+
+        private void start(long grant) {
+            if (this.scheduler.isGranted(this, grant)) {
+                this.current = grant;
+                this.started++;
+            }
+        }
+    }
+}